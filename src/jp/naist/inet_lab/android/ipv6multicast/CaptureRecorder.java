@@ -0,0 +1,129 @@
+package jp.naist.inet_lab.android.ipv6multicast;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+import jp.naist.inet_lab.android.ipv6multicast.MulticastManager.ReceivedData;
+
+/**
+ * Write received packets into a binary capture file.
+ *
+ * The file starts with the magic "MCAP" and a version byte, and then records
+ * follow. Each record is:
+ *
+ * <pre>
+ * long   nanoseconds since the recorder was created
+ * byte   length of the source address (4 or 16), then the address
+ * byte   length of the group address (0, 4 or 16), then the address
+ * ushort source port
+ * ushort target port
+ * ushort length of the payload, then the payload
+ * </pre>
+ *
+ * Use {@link CaptureReplayer} to read it.
+ *
+ * @see MulticastManager#setCaptureRecorder(CaptureRecorder)
+ */
+public class CaptureRecorder {
+    static final byte[] MAGIC = { 'M', 'C', 'A', 'P' };
+    static final int VERSION = 1;
+
+    private final DataOutputStream output;
+    private final long startNanos;
+    private long records;
+
+    /**
+     * The first error while writing. Once an error is occurred, nothing is
+     * recorded any more.
+     */
+    private IOException error;
+
+    /**
+     * @param output
+     *            A stream to write. It is closed by {@link #close()}.
+     * @throws IOException
+     */
+    public CaptureRecorder(OutputStream output) throws IOException {
+        this.output = new DataOutputStream(new BufferedOutputStream(output));
+        this.startNanos = System.nanoTime();
+
+        this.output.write(MAGIC);
+        this.output.writeByte(VERSION);
+    }
+
+    /**
+     * @param file
+     *            A capture file to write. It is overwritten if exists.
+     * @throws IOException
+     */
+    public CaptureRecorder(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * Write the received packet. This never throws to keep the receiver thread
+     * running; an error is reported by {@link #close()} instead.
+     *
+     * @param receivedData
+     *            The received packet
+     */
+    public synchronized void record(ReceivedData receivedData) {
+        if (error != null) {
+            return;
+        }
+
+        try {
+            output.writeLong(System.nanoTime() - startNanos);
+            writeAddress(receivedData.sourceAddress);
+            writeAddress(receivedData.groupAddress);
+            output.writeShort(receivedData.sourcePort);
+            output.writeShort(receivedData.targetPort);
+            output.writeShort(receivedData.length);
+            output.write(receivedData.buffer, 0, receivedData.length);
+            records++;
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    private void writeAddress(InetAddress address) throws IOException {
+        if (address == null) {
+            output.writeByte(0);
+            return;
+        }
+        byte[] bytes = address.getAddress();
+        output.writeByte(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * @return Number of records written
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Flush and close the capture file.
+     *
+     * @throws IOException
+     *             If an error was occurred while recording or closing
+     */
+    public synchronized void close() throws IOException {
+        try {
+            output.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package jp.naist.inet_lab.android.ipv6multicast;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import jp.naist.inet_lab.android.ipv6multicast.MulticastManager.ReceivedData;
+import jp.naist.inet_lab.android.ipv6multicast.MulticastManager.Receiver;
+
+/**
+ * Feed packets in a capture file written by {@link CaptureRecorder} into a
+ * {@link Receiver}, to reproduce the recorded traffic.
+ */
+public class CaptureReplayer {
+    /**
+     * Speed to replay without waiting between packets
+     */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private final DataInputStream input;
+
+    /**
+     * @param input
+     *            A stream to read. It is closed after the replay.
+     * @throws IOException
+     *             If it is not a capture file
+     */
+    public CaptureReplayer(InputStream input) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(input));
+
+        byte[] magic = new byte[CaptureRecorder.MAGIC.length];
+        this.input.readFully(magic);
+        int version = this.input.readUnsignedByte();
+        if (!Arrays.equals(magic, CaptureRecorder.MAGIC)
+                || version != CaptureRecorder.VERSION) {
+            this.input.close();
+            throw new IOException("Not a capture file or unknown version");
+        }
+    }
+
+    /**
+     * @param file
+     *            A capture file to read
+     * @throws IOException
+     */
+    public CaptureReplayer(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    /**
+     * Call the callback with each recorded packet on the current thread.
+     *
+     * @param callback
+     *            A receiver which the packets are fed into
+     * @param speed
+     *            1.0 replays at the original speed, 2.0 replays twice as
+     *            fast. {@link #AS_FAST_AS_POSSIBLE} never waits.
+     * @return Number of replayed packets
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public long replay(Receiver callback, double speed) throws IOException,
+            InterruptedException {
+        long replayed = 0;
+        long firstRecordNanos = 0;
+        long startNanos = System.nanoTime();
+
+        try {
+            while (true) {
+                long recordNanos;
+                try {
+                    recordNanos = input.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                ReceivedData receivedData = new ReceivedData();
+                receivedData.sourceAddress = readAddress();
+                receivedData.groupAddress = readAddress();
+                receivedData.sourcePort = input.readUnsignedShort();
+                receivedData.targetPort = input.readUnsignedShort();
+                receivedData.length = input.readUnsignedShort();
+                receivedData.buffer = new byte[receivedData.length];
+                input.readFully(receivedData.buffer);
+
+                if (replayed == 0) {
+                    firstRecordNanos = recordNanos;
+                }
+                if (speed > 0) {
+                    long due = startNanos
+                            + (long) ((recordNanos - firstRecordNanos) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                }
+
+                callback.run(receivedData);
+                replayed++;
+            }
+        } finally {
+            input.close();
+        }
+
+        return replayed;
+    }
+
+    private InetAddress readAddress() throws IOException {
+        int length = input.readUnsignedByte();
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return InetAddress.getByAddress(bytes);
+    }
+}
@@ -0,0 +1,381 @@
+package jp.naist.inet_lab.android.ipv6multicast;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypt and authenticate messages to a multicast group with a pre-shared
+ * group key (AEAD).
+ *
+ * An encrypted message is:
+ *
+ * <pre>
+ * byte[16] session ID
+ * long     sequence number
+ * byte[]   ciphertext and 16 bytes of authentication tag
+ * </pre>
+ *
+ * Each instance chooses a random session ID, and encrypts with a session key
+ * derived from the group key and the session ID. The nonce is the last 4
+ * bytes of the session ID followed by the sequence number. So a (key, nonce)
+ * pair is never reused even if many instances share a long-lived group key,
+ * unless two of them draw the same 128-bit session ID.
+ *
+ * The receiver remembers recent sequence numbers of each session, and rejects
+ * replayed messages and messages too old to be checked.
+ *
+ * AES-GCM needs API level 19 or later, and ChaCha20-Poly1305 needs API level
+ * 28 or later. On older devices the constructor throws MulticastException.
+ *
+ * @see MulticastManager#setGroupCipher(java.net.InetAddress, GroupCipher)
+ */
+public class GroupCipher {
+    public static final String AES_GCM = "AES/GCM/NoPadding";
+    public static final String CHACHA20_POLY1305 = "ChaCha20-Poly1305";
+
+    /** Size of the session ID */
+    public static final int SESSION_ID_SIZE = 16;
+    /** Size of the session ID and the sequence number */
+    public static final int HEADER_SIZE = SESSION_ID_SIZE + 8;
+    /** Size of the authentication tag */
+    public static final int TAG_SIZE = 16;
+    /** Bytes added to a message by the encryption */
+    public static final int OVERHEAD = HEADER_SIZE + TAG_SIZE;
+
+    /** Size of the nonce (the end of the session ID + sequence number) */
+    static final int NONCE_SIZE = 12;
+    /** The nonce is taken from the header at this offset */
+    static final int NONCE_OFFSET = HEADER_SIZE - NONCE_SIZE;
+    /** Size of the derived key: AES-256 or ChaCha20 */
+    static final int KEY_SIZE = 32;
+    /** Initial size of the pooled buffer, enough for a WiFi MTU */
+    static final int INITIAL_BUFFER_SIZE = 1500;
+    /**
+     * Maximum number of sessions to remember on the receiver. The least
+     * recently used one is forgotten first.
+     */
+    static final int MAX_SESSIONS = 256;
+
+    /**
+     * Constructor of javax.crypto.spec.GCMParameterSpec(int, byte[], int,
+     * int), or null if not available. The class was added in API level 19, so
+     * it is loaded reflectively to build against the older SDK.
+     */
+    private static final Constructor<?> GCM_PARAMETER_SPEC;
+    static {
+        Constructor<?> constructor;
+        try {
+            constructor = Class.forName("javax.crypto.spec.GCMParameterSpec")
+                    .getConstructor(int.class, byte[].class, int.class,
+                            int.class);
+        } catch (Exception e) {
+            constructor = null;
+        }
+        GCM_PARAMETER_SPEC = constructor;
+    }
+
+    /**
+     * A session of a sender, known by the receiver
+     */
+    private static class Session {
+        final SecretKeySpec key;
+        final ReplayWindow window;
+
+        Session(SecretKeySpec key) {
+            this.key = key;
+            this.window = new ReplayWindow();
+        }
+    }
+
+    private final String transformation;
+    /** A key derived from the group key, to derive session keys */
+    private final byte[] masterKey;
+
+    /** Session ID of this instance as a sender */
+    private final byte[] sessionId;
+    /** Session key of this instance as a sender */
+    private final SecretKeySpec sessionKey;
+    private final AtomicLong sequence;
+
+    /** Sessions of the senders, keyed by the session ID */
+    private final Map<ByteBuffer, Session> sessions;
+
+    /**
+     * Cipher instances cached for each thread. Encryption and decryption use
+     * different instances, because some providers refuse to initialize an
+     * instance with the same nonce as the last time.
+     */
+    private final ThreadLocal<Cipher> encryptors;
+    private final ThreadLocal<Cipher> decryptors;
+    /** Buffers for encrypted messages, pooled for each thread */
+    private final ThreadLocal<byte[]> buffers;
+
+    /**
+     * @param groupKey
+     *            The pre-shared group key. Any length is accepted, because a
+     *            key for the algorithm is derived from it.
+     * @param algorithm
+     *            {@link #AES_GCM} or {@link #CHACHA20_POLY1305}
+     * @throws MulticastException
+     *             If the algorithm is not available on this device
+     */
+    public GroupCipher(byte[] groupKey, String algorithm)
+            throws MulticastException {
+        if (!AES_GCM.equals(algorithm) && !CHACHA20_POLY1305.equals(algorithm)) {
+            throw new IllegalArgumentException("Unsupported algorithm: "
+                    + algorithm);
+        }
+        this.transformation = algorithm;
+
+        if (AES_GCM.equals(algorithm) && GCM_PARAMETER_SPEC == null) {
+            throw new MulticastException(new GeneralSecurityException(
+                    "GCMParameterSpec is not available on this device"));
+        }
+
+        this.sessionId = new byte[SESSION_ID_SIZE];
+        new SecureRandom().nextBytes(this.sessionId);
+        this.sequence = new AtomicLong();
+
+        try {
+            this.masterKey = hmac(groupKey, ("IPv6MulticastChat " + algorithm)
+                    .getBytes(Charset.forName("UTF-8")));
+            this.sessionKey = deriveSessionKey(sessionId);
+            /* Fail early if the algorithm is not available */
+            Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new MulticastException(e);
+        }
+
+        this.sessions = new LinkedHashMap<ByteBuffer, Session>(16, 0.75f,
+                true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<ByteBuffer, Session> eldest) {
+                return size() > MAX_SESSIONS;
+            }
+        };
+
+        this.encryptors = new CipherCache(transformation);
+        this.decryptors = new CipherCache(transformation);
+        this.buffers = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[INITIAL_BUFFER_SIZE];
+            }
+        };
+    }
+
+    /**
+     * Create a Cipher instance for each thread at the first use
+     */
+    private static class CipherCache extends ThreadLocal<Cipher> {
+        private final String transformation;
+
+        CipherCache(String transformation) {
+            this.transformation = transformation;
+        }
+
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (GeneralSecurityException e) {
+                /* Already checked in the constructor */
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Compute HMAC-SHA256 of the data. The derived keys are computed with
+     * this, so that the group key is not used directly.
+     */
+    private static byte[] hmac(byte[] key, byte[] data)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    /**
+     * Derive the session key from the master key and the session ID, so that
+     * every session has its own key for the algorithm.
+     */
+    private SecretKeySpec deriveSessionKey(byte[] id)
+            throws GeneralSecurityException {
+        byte[] derived = hmac(masterKey, id);
+        String keyAlgorithm = AES_GCM.equals(transformation) ? "AES"
+                : "ChaCha20";
+        return new SecretKeySpec(derived, 0, KEY_SIZE, keyAlgorithm);
+    }
+
+    /**
+     * Encrypt the data into the buffer pooled for the current thread. The
+     * buffer is overwritten by the next call on the same thread, so send it
+     * before that.
+     *
+     * @param data
+     *            Data to be encrypted
+     * @param length
+     *            Size of the data
+     * @return The encrypted message. Its size is length + {@link #OVERHEAD}.
+     * @throws MulticastException
+     */
+    public byte[] encrypt(byte[] data, int length) throws MulticastException {
+        int messageLength = length + OVERHEAD;
+        byte[] buffer = buffers.get();
+        if (buffer.length < messageLength) {
+            buffer = new byte[messageLength];
+            buffers.set(buffer);
+        }
+
+        long sequenceNumber = sequence.getAndIncrement();
+        System.arraycopy(sessionId, 0, buffer, 0, SESSION_ID_SIZE);
+        writeLong(buffer, SESSION_ID_SIZE, sequenceNumber);
+
+        try {
+            Cipher cipher = encryptors.get();
+            cipher.init(Cipher.ENCRYPT_MODE, sessionKey, nonce(buffer));
+            cipher.doFinal(data, 0, length, buffer, HEADER_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new MulticastException(e);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Decrypt the message in place. The decrypted data is written from the
+     * beginning of the buffer.
+     *
+     * @param receivedData
+     *            Received message. Its buffer, length, sender ID and sequence
+     *            number are updated.
+     * @throws MulticastException
+     *             If the message is too short, not authentic, or replayed
+     */
+    public void decrypt(MulticastManager.ReceivedData receivedData)
+            throws MulticastException {
+        byte[] buffer = receivedData.buffer;
+        int length = receivedData.length;
+        if (length < OVERHEAD) {
+            throw new MulticastException(new GeneralSecurityException(
+                    "The message is too short"));
+        }
+
+        int senderId = readInt(buffer, 0);
+        long sequenceNumber = readLong(buffer, SESSION_ID_SIZE);
+
+        /* The decrypted data overwrites the header, so copy the ID first */
+        byte[] id = new byte[SESSION_ID_SIZE];
+        System.arraycopy(buffer, 0, id, 0, SESSION_ID_SIZE);
+        ByteBuffer mapKey = ByteBuffer.wrap(id);
+
+        Session session;
+        synchronized (sessions) {
+            session = sessions.get(mapKey);
+        }
+
+        try {
+            SecretKeySpec key;
+            if (session != null) {
+                if (session.window.isReplayed(sequenceNumber)) {
+                    throw new GeneralSecurityException("Replayed message");
+                }
+                key = session.key;
+            } else {
+                key = deriveSessionKey(id);
+            }
+
+            Cipher cipher = decryptors.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, nonce(buffer));
+            receivedData.length = cipher.doFinal(buffer, HEADER_SIZE, length
+                    - HEADER_SIZE, buffer, 0);
+
+            /*
+             * Remember a new session only after the message is authenticated,
+             * so that forged session IDs cannot push out the real ones.
+             */
+            if (session == null) {
+                synchronized (sessions) {
+                    session = sessions.get(mapKey);
+                    if (session == null) {
+                        session = new Session(key);
+                        sessions.put(mapKey, session);
+                    }
+                }
+            }
+            if (!session.window.accept(sequenceNumber)) {
+                throw new GeneralSecurityException("Replayed message");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new MulticastException(e);
+        }
+
+        receivedData.senderId = senderId;
+        receivedData.sequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * @return The sender ID of this node in the messages, which is the first
+     *         4 bytes of the session ID
+     */
+    public int getSenderId() {
+        return readInt(sessionId, 0);
+    }
+
+    /**
+     * Build the nonce from the header of the message.
+     */
+    private AlgorithmParameterSpec nonce(byte[] header)
+            throws GeneralSecurityException {
+        if (AES_GCM.equals(transformation)) {
+            try {
+                return (AlgorithmParameterSpec) GCM_PARAMETER_SPEC
+                        .newInstance(TAG_SIZE * 8, header, NONCE_OFFSET,
+                                NONCE_SIZE);
+            } catch (Exception e) {
+                /* Checked in the constructor, so this never happens */
+                throw new GeneralSecurityException(e);
+            }
+        }
+        return new IvParameterSpec(header, NONCE_OFFSET, NONCE_SIZE);
+    }
+
+    private static void writeLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
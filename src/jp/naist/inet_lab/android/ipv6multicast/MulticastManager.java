@@ -8,12 +8,18 @@ import java.net.MulticastSocket;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.net.wifi.WifiManager;
@@ -29,7 +35,12 @@ public class MulticastManager {
     /**
      * Keep tracks of all multicast sockets
      */
-    HashMap<InetAddress, MulticastSocket> sockets;
+    ConcurrentMap<InetAddress, MulticastSocket> sockets;
+
+    /**
+     * Sockets in sockets which are still joining the group asynchronously
+     */
+    Set<MulticastSocket> pendingJoins;
 
     /**
      * A state of a MulticastLock on the WiFi interface
@@ -42,8 +53,39 @@ public class MulticastManager {
      */
     InetAddress latestGroupAddress;
 
+    /**
+     * Record the received packets if set
+     */
+    volatile CaptureRecorder captureRecorder;
+
+    /**
+     * Limit the sending rate per group and per sender
+     */
+    SendPacer pacer;
+
+    /**
+     * Ciphers to encrypt the messages for each group
+     */
+    Map<InetAddress, GroupCipher> ciphers;
+
+    /**
+     * Number of received packets dropped because of decryption failure
+     */
+    AtomicLong decryptionFailures;
+
+    /**
+     * Time taken by the last join, from creating the socket to joining the
+     * group
+     */
+    volatile long lastJoinLatencyNanos;
+
     public MulticastManager() {
-        sockets = new HashMap<InetAddress, MulticastSocket>();
+        sockets = new ConcurrentHashMap<InetAddress, MulticastSocket>();
+        pendingJoins = Collections.newSetFromMap(
+                new ConcurrentHashMap<MulticastSocket, Boolean>());
+        pacer = new SendPacer();
+        ciphers = new ConcurrentHashMap<InetAddress, GroupCipher>();
+        decryptionFailures = new AtomicLong();
     }
 
     /**
@@ -64,13 +106,19 @@ public class MulticastManager {
             return;
         }
 
+        long start = System.nanoTime();
         MulticastSocket socket;
         try {
             // Create a socket and join the multicast group
-            socket = new MulticastSocket(localPort);
+            socket = createSocket(localPort);
             socket.joinGroup(groupAddress);
 
-            sockets.put(groupAddress, socket);
+            /* Another thread may have joined the group in the meantime */
+            if (sockets.putIfAbsent(groupAddress, socket) != null) {
+                socket.close();
+                return;
+            }
+            lastJoinLatencyNanos = System.nanoTime() - start;
 
             /*
              * For compatibility with api4 and earlier, keep track the group
@@ -82,6 +130,19 @@ public class MulticastManager {
         }
     }
 
+    /**
+     * Create a socket which bind on the local port. Override this to use
+     * another transport, e.g. an in-memory network for testing.
+     * 
+     * @param localPort
+     *            A port number which bind on the local
+     * @return A socket which is not joined to any group yet
+     * @throws IOException
+     */
+    protected MulticastSocket createSocket(int localPort) throws IOException {
+        return new MulticastSocket(localPort);
+    }
+
     /**
      * Join the specified multicast group.
      * 
@@ -121,29 +182,276 @@ public class MulticastManager {
     }
 
     /**
-     * Leave the all multicast group that already joined.
+     * Listener of the result of {@link MulticastManager#joinAsync}. It is
+     * called on the joining thread, not on the UI thread.
+     */
+    public interface JoinListener {
+        /**
+         * @param groupAddress
+         *            An address of the joined group
+         * @param latencyNanos
+         *            Time taken to join by nanoseconds
+         */
+        public void onJoined(InetAddress groupAddress, long latencyNanos);
+
+        /**
+         * Called instead of onJoined() if the group is already joined. The
+         * socket, the receiver and its callback of the earlier join are kept,
+         * and the callback and the buffer size of this join are not used.
+         * 
+         * @param groupAddress
+         *            An address of the group
+         */
+        public void onAlreadyJoined(InetAddress groupAddress);
+
+        public void onJoinFailed(MulticastException e);
+    }
+
+    /**
+     * Join the specified multicast group and start the receiver on a
+     * background thread, so that the caller (e.g. the UI thread) is never
+     * blocked.
+     * 
+     * The address MUST be a literal, so that no resolver is called. The
+     * receiver thread is started before the group is joined, so no packet is
+     * missed after the join.
+     * 
+     * If the group is already joined, nothing is changed and
+     * {@link JoinListener#onAlreadyJoined(InetAddress)} is called. The
+     * callback passed here is not used then.
+     * 
+     * @param groupAddressByHumanReadable
+     *            A literal address of the multicast group
+     * @param localPort
+     *            A port number which bind on the local
+     * @param bufferSize
+     *            Size of the receive buffer
+     * @param ignoreOwnSentPacket
+     *            Ignore the packet which I sent
+     * @param callback
+     *            A method which execute after receive an any packet
+     * @param listener
+     *            A listener which is notified of the result
+     * @see #startReceiver(InetAddress, int, boolean, Receiver)
+     */
+    public void joinAsync(final String groupAddressByHumanReadable,
+            final int localPort, final int bufferSize,
+            final boolean ignoreOwnSentPacket, final Receiver callback,
+            final JoinListener listener) {
+        Thread joiner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                InetAddress groupAddress;
+                MulticastSocket socket;
+
+                try {
+                    groupAddress = MulticastManager
+                            .parseLiteralAddress(groupAddressByHumanReadable);
+                    if (sockets.containsKey(groupAddress)) {
+                        listener.onAlreadyJoined(groupAddress);
+                        return;
+                    }
+                    socket = createSocket(localPort);
+                } catch (IOException e) {
+                    listener.onJoinFailed(new MulticastException(e));
+                    return;
+                } catch (MulticastException e) {
+                    listener.onJoinFailed(e);
+                    return;
+                }
+
+                try {
+                    socket.setLoopbackMode(ignoreOwnSentPacket);
+                } catch (IOException e) {
+                    socket.close();
+                    listener.onJoinFailed(new MulticastException(e));
+                    return;
+                }
+
+                /*
+                 * Be ready to receive before the MLD report goes out. Another
+                 * thread may have joined the group since the check above, then
+                 * keep its socket.
+                 */
+                pendingJoins.add(socket);
+                if (sockets.putIfAbsent(groupAddress, socket) != null) {
+                    pendingJoins.remove(socket);
+                    socket.close();
+                    listener.onAlreadyJoined(groupAddress);
+                    return;
+                }
+                startReceiverThread(groupAddress, socket, bufferSize, callback);
+
+                try {
+                    socket.joinGroup(groupAddress);
+                } catch (IOException e) {
+                    sockets.remove(groupAddress, socket);
+                    socket.close();
+                    listener.onJoinFailed(new MulticastException(e));
+                    return;
+                } finally {
+                    pendingJoins.remove(socket);
+                }
+
+                /* leave() was called while joining, and closed the socket */
+                if (sockets.get(groupAddress) != socket) {
+                    socket.close();
+                    listener.onJoinFailed(new MulticastException(
+                            new SocketException("Left while joining "
+                                    + groupAddress)));
+                    return;
+                }
+
+                latestGroupAddress = groupAddress;
+                lastJoinLatencyNanos = System.nanoTime() - start;
+                listener.onJoined(groupAddress, lastJoinLatencyNanos);
+            }
+        }, "MulticastManager-join");
+        joiner.start();
+    }
+
+    /**
+     * Convert a literal IPv6 address to InetAddress without calling any
+     * resolver. Only hex groups and colons are accepted, with at most one
+     * "::". A zone ID or an embedded IPv4 address is not accepted.
      * 
+     * @param literalAddress
+     *            A literal IPv6 address, e.g. "ff12::1234"
+     * @return The address
      * @throws MulticastException
+     *             If it is not a literal IPv6 multicast address
      */
-    public void leave() throws MulticastException {
+    public static InetAddress parseLiteralAddress(String literalAddress)
+            throws MulticastException {
+        byte[] bytes = (literalAddress == null) ? null
+                : parseHexGroups(literalAddress);
+        if (bytes == null) {
+            throw new MulticastException(new UnknownHostException(
+                    "Not a literal IPv6 address: " + literalAddress));
+        }
+
+        InetAddress address;
         try {
-            for (Map.Entry<InetAddress, MulticastSocket> entry : sockets
-                    .entrySet()) {
-                InetAddress groupAddress = entry.getKey();
-                MulticastSocket socket = entry.getValue();
+            /* getByAddress() never calls the resolver */
+            address = InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new MulticastException(e);
+        }
+        if (!address.isMulticastAddress()) {
+            throw new MulticastException(new UnknownHostException(
+                    "Not a multicast address: " + literalAddress));
+        }
+        return address;
+    }
 
-                socket.leaveGroup(groupAddress);
+    /**
+     * Parse the text form of an IPv6 address made of hex groups and colons.
+     * 
+     * @return 16 bytes of the address, or null if malformed
+     */
+    private static byte[] parseHexGroups(String text) {
+        int compressed = text.indexOf("::");
+        if (compressed >= 0 && text.indexOf("::", compressed + 1) >= 0) {
+            return null;
+        }
+
+        /* Groups before and after "::", or all groups if not compressed */
+        String head = (compressed < 0) ? text : text.substring(0, compressed);
+        String tail = (compressed < 0) ? "" : text.substring(compressed + 2);
+        int[] headGroups = parseGroups(head);
+        int[] tailGroups = parseGroups(tail);
+        if (headGroups == null || tailGroups == null) {
+            return null;
+        }
+
+        int groups = headGroups.length + tailGroups.length;
+        if ((compressed < 0) ? groups != 8 : groups > 7) {
+            return null;
+        }
+
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < headGroups.length; i++) {
+            bytes[i * 2] = (byte) (headGroups[i] >> 8);
+            bytes[i * 2 + 1] = (byte) headGroups[i];
+        }
+        int offset = 16 - tailGroups.length * 2;
+        for (int i = 0; i < tailGroups.length; i++) {
+            bytes[offset + i * 2] = (byte) (tailGroups[i] >> 8);
+            bytes[offset + i * 2 + 1] = (byte) tailGroups[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Parse hex groups separated by single colons, e.g. "ff12:0:1".
+     * 
+     * @return Values of the groups (empty for an empty text), or null if
+     *         malformed
+     */
+    private static int[] parseGroups(String text) {
+        if (text.length() == 0) {
+            return new int[0];
+        }
 
-                sockets.remove(groupAddress);
+        String[] groups = text.split(":", -1);
+        if (groups.length > 8) {
+            return null;
+        }
+        int[] values = new int[groups.length];
+        for (int i = 0; i < groups.length; i++) {
+            String group = groups[i];
+            if (group.length() == 0 || group.length() > 4) {
+                return null;
             }
-        } catch (IOException e) {
-            throw new MulticastException(e);
+            int value = 0;
+            for (int j = 0; j < group.length(); j++) {
+                char c = group.charAt(j);
+                int digit;
+                if (c >= '0' && c <= '9') {
+                    digit = c - '0';
+                } else if (c >= 'a' && c <= 'f') {
+                    digit = c - 'a' + 10;
+                } else if (c >= 'A' && c <= 'F') {
+                    digit = c - 'A' + 10;
+                } else {
+                    return null;
+                }
+                value = (value << 4) | digit;
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+
+    /**
+     * Return the time taken by the last join.
+     * 
+     * @return Latency by nanoseconds, or 0 if never joined
+     */
+    public long getLastJoinLatencyNanos() {
+        return lastJoinLatencyNanos;
+    }
+
+    /**
+     * Leave the all multicast group that already joined.
+     * 
+     * @throws MulticastException
+     */
+    public void leave() throws MulticastException {
+        for (InetAddress groupAddress : new ArrayList<InetAddress>(
+                sockets.keySet())) {
+            leave(groupAddress);
         }
     }
 
     /**
      * Leave the multicast group.
      * 
+     * The socket is closed, so the receiver thread of the group stops. If
+     * {@link #joinAsync} is still joining the group, the join is cancelled
+     * and reported as failed.
+     * 
      * @param groupAddress
      * @throws MulticastException
      */
@@ -151,25 +459,37 @@ public class MulticastManager {
         MulticastSocket socket = sockets.get(groupAddress);
 
         try {
-            socket.leaveGroup(groupAddress);
-
-            sockets.remove(groupAddress);
+            /* A socket still joining has nothing to leave yet */
+            if (!pendingJoins.contains(socket)) {
+                socket.leaveGroup(groupAddress);
+            }
         } catch (IOException e) {
             throw new MulticastException(e);
+        } finally {
+            sockets.remove(groupAddress, socket);
+            pacer.clear(groupAddress);
+            socket.close();
         }
     }
 
     /**
      * Send data to the joined multicast group.
      * 
+     * If the data exceeds the rate limit, it is queued and sent later in order.
+     * 
      * @param data
      *            Data that you want to send
      * @param remotePort
      *            Remote-side port number
-     * @return Size of the data that I actually sent
+     * @return Size of the data that I actually sent (Queued data is not
+     *         counted)
      * @throws MulticastException
+     * @see #setGroupRateLimit(InetAddress, long, long)
+     * @see #setSenderRateLimit(long, long)
      */
     public int sendData(byte[] data, int remotePort) throws MulticastException {
+        int sentBytes = 0;
+
         try {
             for (Map.Entry<InetAddress, MulticastSocket> entry : sockets
                     .entrySet()) {
@@ -177,16 +497,122 @@ public class MulticastManager {
                 MulticastSocket socket = entry.getValue();
 
                 /* Build a datagram packet and send it */
-                DatagramPacket packet = new DatagramPacket(data, data.length,
-                        groupAddress, remotePort);
+                DatagramPacket packet;
+                GroupCipher cipher = ciphers.get(groupAddress);
+                if (cipher != null) {
+                    packet = new DatagramPacket(cipher.encrypt(data,
+                            data.length), data.length + GroupCipher.OVERHEAD,
+                            groupAddress, remotePort);
+                } else {
+                    packet = new DatagramPacket(data, data.length,
+                            groupAddress, remotePort);
+                }
 
-                socket.send(packet);
+                sentBytes += pacer.send(socket, groupAddress, packet);
             }
         } catch (IOException e) {
             throw new MulticastException(e);
         }
 
-        return 0;
+        return sentBytes;
+    }
+
+    /**
+     * Limit the sending rate to the multicast group.
+     * 
+     * @param groupAddress
+     *            An address of the multicast group
+     * @param bytesPerSecond
+     *            Sustained rate by bytes per second
+     * @param burstBytes
+     *            Maximum size by bytes which can be sent at once
+     */
+    public void setGroupRateLimit(InetAddress groupAddress,
+            long bytesPerSecond, long burstBytes) {
+        pacer.setGroupLimit(groupAddress, bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * Remove the rate limit of the multicast group.
+     * 
+     * @param groupAddress
+     *            An address of the multicast group
+     */
+    public void removeGroupRateLimit(InetAddress groupAddress) {
+        pacer.removeGroupLimit(groupAddress);
+    }
+
+    /**
+     * Limit the total sending rate of this node over all groups.
+     * 
+     * @param bytesPerSecond
+     *            Sustained rate by bytes per second
+     * @param burstBytes
+     *            Maximum size by bytes which can be sent at once
+     */
+    public void setSenderRateLimit(long bytesPerSecond, long burstBytes) {
+        pacer.setSenderLimit(bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * Remove the total sending rate limit of this node.
+     */
+    public void removeSenderRateLimit() {
+        pacer.removeSenderLimit();
+    }
+
+    /**
+     * Enable or disable the adaptive rate control. If enabled, the rate is
+     * halved each time a loss is reported by
+     * {@link #reportLoss(InetAddress)}, and then recovers to the configured
+     * limit gradually. A rate backed off before disabling keeps recovering.
+     * 
+     * @param adaptive
+     *            True then enable
+     */
+    public void setAdaptiveRateControl(boolean adaptive) {
+        pacer.setAdaptive(adaptive);
+    }
+
+    /**
+     * Report that receivers lost packets sent to the group. This has an effect
+     * only when the adaptive rate control is enabled.
+     * 
+     * @param groupAddress
+     *            An address of the multicast group
+     */
+    public void reportLoss(InetAddress groupAddress) {
+        pacer.reportLoss(groupAddress);
+    }
+
+    /**
+     * Return the size of the data which was queued by the rate limit.
+     * 
+     * @param groupAddress
+     *            An address of the multicast group
+     * @return Throttled bytes
+     */
+    public long getThrottledBytes(InetAddress groupAddress) {
+        return pacer.getThrottledBytes(groupAddress);
+    }
+
+    /**
+     * Return the size of the data which was queued by the rate limit over all
+     * groups.
+     * 
+     * @return Throttled bytes
+     */
+    public long getThrottledBytes() {
+        return pacer.getThrottledBytes();
+    }
+
+    /**
+     * Return the number of packets waiting to be sent.
+     * 
+     * @return Number of queued packets
+     */
+    public int getQueuedPackets() {
+        return pacer.getQueuedPackets();
     }
 
     /**
@@ -225,6 +651,9 @@ public class MulticastManager {
      * Receive data from the multicast group which the most recently joined, and
      * return the detailed data.
      * 
+     * If a cipher is set to the group, the data is decrypted, and a packet
+     * which fails to decrypt is dropped and counted like the receiver thread.
+     * 
      * @param bufferSize
      * @param ignoreOwnSentPacket
      * @return
@@ -236,34 +665,52 @@ public class MulticastManager {
     public ReceivedData receiveDataWithDetail(int bufferSize,
             boolean ignoreOwnSentPacket) throws MulticastException {
         byte[] buffer = new byte[bufferSize];
-        MulticastSocket socket = sockets.get(this.latestGroupAddress);
+        InetAddress groupAddress = this.latestGroupAddress;
+        MulticastSocket socket = sockets.get(groupAddress);
+        GroupCipher cipher = ciphers.get(groupAddress);
 
         // Build packet and receive data into it
         DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        InetAddress sourceAddress;
+        ReceivedData receivedData = new ReceivedData();
         try {
             while (true) {
                 socket.receive(packet);
 
-                sourceAddress = packet.getAddress();
+                InetAddress sourceAddress = packet.getAddress();
 
                 if ((ignoreOwnSentPacket)
                         && (getAllLocalIPv6Addresses().contains(sourceAddress))) {
                     Log.d("MulticastManager", "Ignore the packet which I sent.");
                     continue;
-                } else {
-                    break;
                 }
+
+                receivedData.buffer = buffer;
+                receivedData.length = packet.getLength();
+                receivedData.sourceAddress = sourceAddress;
+                receivedData.sourcePort = packet.getPort();
+
+                if (cipher != null) {
+                    try {
+                        cipher.decrypt(receivedData);
+                    } catch (MulticastException e) {
+                        decryptionFailures.incrementAndGet();
+                        /* Reset the size for the next packet */
+                        packet.setLength(buffer.length);
+                        continue;
+                    }
+                    /*
+                     * receiveData() returns the whole buffer, so clear the rest
+                     * of the ciphertext after the plaintext
+                     */
+                    Arrays.fill(buffer, receivedData.length,
+                            packet.getLength(), (byte) 0);
+                }
+                break;
             }
         } catch (IOException e) {
             throw new MulticastException(e);
         }
 
-        ReceivedData receivedData = new ReceivedData();
-        receivedData.buffer = buffer;
-        receivedData.sourceAddress = sourceAddress;
-        receivedData.sourcePort = packet.getPort();
-
         return receivedData;
     }
 
@@ -298,6 +745,16 @@ public class MulticastManager {
             throw new MulticastException(e);
         }
 
+        startReceiverThread(groupAddress, socket, bufferSize, callback);
+    }
+
+    /**
+     * Start the thread which receives packets from the socket while the group
+     * is joined.
+     */
+    private void startReceiverThread(final InetAddress groupAddress,
+            final MulticastSocket socket, final int bufferSize,
+            final Receiver callback) {
         Thread receiver = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -316,9 +773,29 @@ public class MulticastManager {
                         receivedData.length = packet.getLength();
                         receivedData.sourceAddress = packet.getAddress();
                         receivedData.sourcePort = packet.getPort();
-                        receivedData.groupAddress = socket.getInetAddress();
+                        receivedData.groupAddress = groupAddress;
                         receivedData.targetPort = socket.getLocalPort();
 
+                        /*
+                         * Record the packet as it was on the link, before the
+                         * decryption and the callback touch it
+                         */
+                        CaptureRecorder recorder = captureRecorder;
+                        if (recorder != null) {
+                            recorder.record(receivedData);
+                        }
+
+                        /* Decrypt in place, and drop if not authentic */
+                        GroupCipher cipher = ciphers.get(groupAddress);
+                        if (cipher != null) {
+                            try {
+                                cipher.decrypt(receivedData);
+                            } catch (MulticastException e) {
+                                decryptionFailures.incrementAndGet();
+                                continue;
+                            }
+                        }
+
                         /* Execute the callback function */
                         callback.run(receivedData);
                     } catch (IOException e) {
@@ -338,7 +815,9 @@ public class MulticastManager {
     /**
      * Contain received data, include source address and port.
      */
-    public class ReceivedData {
+    public static class ReceivedData {
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
         /** Bytes of data which received. */
         public byte[] buffer;
         /** Size of the received data by bytes */
@@ -351,6 +830,135 @@ public class MulticastManager {
         public int sourcePort;
         /** Target port (which means local port) */
         public int targetPort;
+        /**
+         * Sender ID (the first 4 bytes of the session ID) in the encrypted
+         * message. 0 if not encrypted.
+         */
+        public int senderId;
+        /** Sequence number in the encrypted message. 0 if not encrypted. */
+        public long sequenceNumber;
+
+        /** Decoded text. Computed at the first call of getText(). */
+        private String text;
+        /** Decoded header, or null if there is no separator */
+        private String header;
+        /** The separator which the header was decoded with */
+        private byte[] headerSeparator;
+        /** True if the header was decoded */
+        private boolean headerDecoded;
+
+        /**
+         * Return a read-only view of the received data, without copying. The
+         * view is limited to the actual length.
+         * 
+         * @return A read-only buffer which position is 0 and limit is length
+         */
+        public ByteBuffer getPayload() {
+            return ByteBuffer.wrap(buffer, 0, length).slice()
+                    .asReadOnlyBuffer();
+        }
+
+        /**
+         * Return the received data decoded as UTF-8. It is decoded only once,
+         * at the first call, so don't modify the buffer after that.
+         * 
+         * @return Decoded text
+         */
+        public String getText() {
+            String decoded = text;
+            if (decoded == null) {
+                decoded = new String(buffer, 0, length, UTF_8);
+                text = decoded;
+            }
+            return decoded;
+        }
+
+        /**
+         * Return the header before the first separator, e.g. "Bob" of
+         * "Bob > Hello" with the separator " > ". Only the header is decoded,
+         * only once for the same separator.
+         * 
+         * @param separator
+         *            The separator encoded in UTF-8. Keep it in a constant to
+         *            avoid encoding it for each message.
+         * @return Decoded header, or null if there is no separator
+         */
+        public synchronized String getHeader(byte[] separator) {
+            if (headerDecoded && Arrays.equals(headerSeparator, separator)) {
+                return header;
+            }
+
+            /*
+             * UTF-8 is self-synchronizing, so the separator never matches a
+             * part of a multi-byte character.
+             */
+            int end = indexOf(separator);
+            String decoded = (end < 0) ? null : new String(buffer, 0, end,
+                    UTF_8);
+            header = decoded;
+            headerSeparator = separator;
+            headerDecoded = true;
+            return decoded;
+        }
+
+        private int indexOf(byte[] separator) {
+            for (int i = 0; i + separator.length <= length; i++) {
+                int j = 0;
+                while (j < separator.length
+                        && buffer[i + j] == separator[j]) {
+                    j++;
+                }
+                if (j == separator.length) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Encrypt the messages to the multicast group, and decrypt the messages
+     * from it. All members of the group MUST use the same group key. Set null
+     * to communicate in plaintext.
+     * 
+     * @param groupAddress
+     *            An address of the multicast group
+     * @param cipher
+     *            A cipher with the group key, or null
+     */
+    public void setGroupCipher(InetAddress groupAddress, GroupCipher cipher) {
+        if (cipher == null) {
+            ciphers.remove(groupAddress);
+        } else {
+            ciphers.put(groupAddress, cipher);
+        }
+    }
+
+    /**
+     * Return the number of received packets which were dropped because they
+     * could not be decrypted.
+     * 
+     * @return Number of dropped packets
+     */
+    public long getDecryptionFailures() {
+        return decryptionFailures.get();
+    }
+
+    /**
+     * Record all packets received by the receiver threads. Set null to stop
+     * recording. The recorder is not closed by this manager.
+     * 
+     * Packets are recorded as received, before decryption. So a capture of
+     * a group with a cipher holds the ciphertext, including the packets which
+     * fail to decrypt, and no plaintext is written to the file. Decrypt the
+     * replayed packets with {@link GroupCipher#decrypt(ReceivedData)}.
+     * 
+     * @param recorder
+     *            A recorder which writes the capture file, or null
+     * @see CaptureReplayer
+     */
+    public void setCaptureRecorder(CaptureRecorder recorder) {
+        this.captureRecorder = recorder;
     }
 
     /**
@@ -361,6 +969,8 @@ public class MulticastManager {
      * to call disableMulticastOnWifi(). It may cause battery issue if you
      * forget to call that method.
      * 
+     * Calling this again while enabled does nothing, so one
+     * disableMulticastOnWifi() always releases the lock.
      * 
      * @param context
      *            Context of the application
@@ -368,7 +978,13 @@ public class MulticastManager {
      *            A tag for identify a state of the WiFi. This tag is only used
      *            internally.
      */
-    public void enableMulticastOnWifi(Context context, String tag) {
+    public synchronized void enableMulticastOnWifi(Context context,
+            String tag) {
+        /* Do nothing if already enabled, so the held lock is never leaked */
+        if (this.multicastLock != null && this.multicastLock.isHeld()) {
+            return;
+        }
+
         WifiManager wifiManager = (WifiManager) context
                 .getSystemService(android.content.Context.WIFI_SERVICE);
         this.multicastLock = wifiManager.createMulticastLock(tag);
@@ -379,8 +995,11 @@ public class MulticastManager {
     /**
      * Disable IP multicast on WiFi interface.
      */
-    public void disableMulticastOnWifi() {
-        this.multicastLock.release();
+    public synchronized void disableMulticastOnWifi() {
+        /* Do nothing if not enabled or already disabled */
+        if (this.multicastLock != null && this.multicastLock.isHeld()) {
+            this.multicastLock.release();
+        }
     }
 
     /**
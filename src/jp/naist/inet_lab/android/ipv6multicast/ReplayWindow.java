@@ -0,0 +1,65 @@
+package jp.naist.inet_lab.android.ipv6multicast;
+
+import java.util.Arrays;
+
+/**
+ * Sliding window of sequence numbers already accepted from a sender, to reject
+ * replayed messages. A sequence number older than the window is rejected too,
+ * because it cannot be checked.
+ */
+class ReplayWindow {
+    /** Number of sequence numbers below the highest one to remember */
+    static final int SIZE = 1024;
+
+    /** Bits of accepted sequence numbers, indexed by sequence % SIZE */
+    private final long[] bits = new long[SIZE / 64];
+    /** The highest sequence number accepted, or -1 */
+    private long highest = -1;
+
+    /**
+     * Check without accepting. Use this to reject a replay before the costly
+     * decryption.
+     *
+     * @return True if the sequence number must be rejected
+     */
+    synchronized boolean isReplayed(long sequence) {
+        if (sequence < 0 || sequence <= highest - SIZE) {
+            return true;
+        }
+        return sequence <= highest && isMarked(sequence);
+    }
+
+    /**
+     * Accept the sequence number if it is not replayed. Call this only after
+     * the message is authenticated.
+     *
+     * @return True if accepted, false if replayed
+     */
+    synchronized boolean accept(long sequence) {
+        if (isReplayed(sequence)) {
+            return false;
+        }
+
+        if (sequence > highest) {
+            /* Forget the sequence numbers which go out of the window */
+            if (sequence - highest >= SIZE) {
+                Arrays.fill(bits, 0);
+            } else {
+                for (long i = highest + 1; i < sequence; i++) {
+                    int index = (int) (i % SIZE);
+                    bits[index / 64] &= ~(1L << (index % 64));
+                }
+            }
+            highest = sequence;
+        }
+
+        int index = (int) (sequence % SIZE);
+        bits[index / 64] |= 1L << (index % 64);
+        return true;
+    }
+
+    private boolean isMarked(long sequence) {
+        int index = (int) (sequence % SIZE);
+        return (bits[index / 64] & (1L << (index % 64))) != 0;
+    }
+}
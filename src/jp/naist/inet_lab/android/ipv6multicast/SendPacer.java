@@ -0,0 +1,391 @@
+package jp.naist.inet_lab.android.ipv6multicast;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Limit the sending rate per group and per sender with token buckets.
+ *
+ * A packet which exceeds the limits is not dropped but queued, and it is sent
+ * later by the pacer thread. All groups share one queue in arrival order, so
+ * that a busy group cannot take every token of the sender bucket ahead of the
+ * packets already queued for another group.
+ */
+class SendPacer {
+    /**
+     * The pacer thread exits when the queue stays empty for this time, so that
+     * an idle or abandoned manager does not keep a thread.
+     */
+    static final long IDLE_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * A packet waiting to be sent
+     */
+    static class PendingPacket {
+        final MulticastSocket socket;
+        final InetAddress groupAddress;
+        final DatagramPacket packet;
+
+        PendingPacket(MulticastSocket socket, InetAddress groupAddress,
+                DatagramPacket packet) {
+            this.socket = socket;
+            this.groupAddress = groupAddress;
+            this.packet = packet;
+        }
+    }
+
+    /** Token buckets for each group */
+    final Map<InetAddress, TokenBucket> groupBuckets;
+    /** A token bucket for all packets sent by this node */
+    TokenBucket senderBucket;
+    /**
+     * True then back off when a loss is reported. A backed off rate recovers
+     * regardless of this flag.
+     */
+    boolean adaptive;
+
+    /** Queued packets of all groups in arrival order */
+    final LinkedList<PendingPacket> queue;
+    /**
+     * Number of packets for each group which are queued or being sent by the
+     * pacer thread
+     */
+    final Map<InetAddress, Integer> queuedPackets;
+    /** Number of packets taken from the queue and being sent by the pacer */
+    int inFlight;
+    /** Bytes which were throttled (queued) for each group */
+    final Map<InetAddress, Long> throttledBytes;
+    long totalThrottledBytes;
+
+    /** The thread which sends the queued packets, or null if not running */
+    Thread pacer;
+
+    SendPacer() {
+        groupBuckets = new HashMap<InetAddress, TokenBucket>();
+        queue = new LinkedList<PendingPacket>();
+        queuedPackets = new HashMap<InetAddress, Integer>();
+        throttledBytes = new HashMap<InetAddress, Long>();
+    }
+
+    synchronized void setGroupLimit(InetAddress groupAddress,
+            long bytesPerSecond, long burstBytes) {
+        groupBuckets.put(groupAddress, new TokenBucket(bytesPerSecond,
+                burstBytes));
+        notifyAll();
+    }
+
+    synchronized void removeGroupLimit(InetAddress groupAddress) {
+        groupBuckets.remove(groupAddress);
+        notifyAll();
+    }
+
+    synchronized void setSenderLimit(long bytesPerSecond, long burstBytes) {
+        senderBucket = new TokenBucket(bytesPerSecond, burstBytes);
+        notifyAll();
+    }
+
+    synchronized void removeSenderLimit() {
+        senderBucket = null;
+        notifyAll();
+    }
+
+    synchronized void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Back off the rate of the group. If no limit is set to the group, back off
+     * the rate of the sender instead.
+     */
+    synchronized void reportLoss(InetAddress groupAddress) {
+        if (!adaptive) {
+            return;
+        }
+        TokenBucket bucket = groupBuckets.get(groupAddress);
+        if (bucket == null) {
+            bucket = senderBucket;
+        }
+        if (bucket != null) {
+            bucket.refill();
+            bucket.backOff();
+        }
+    }
+
+    synchronized long getThrottledBytes(InetAddress groupAddress) {
+        Long bytes = throttledBytes.get(groupAddress);
+        return (bytes == null) ? 0 : bytes;
+    }
+
+    synchronized long getThrottledBytes() {
+        return totalThrottledBytes;
+    }
+
+    /**
+     * @return Number of packets which are queued or still being sent
+     */
+    synchronized int getQueuedPackets() {
+        return queue.size() + inFlight;
+    }
+
+    private int getQueuedPackets(InetAddress groupAddress) {
+        Integer count = queuedPackets.get(groupAddress);
+        return (count == null) ? 0 : count;
+    }
+
+    /**
+     * Count down a packet of the group which left the queue or was sent.
+     */
+    private void countDown(InetAddress groupAddress) {
+        int count = getQueuedPackets(groupAddress) - 1;
+        if (count > 0) {
+            queuedPackets.put(groupAddress, count);
+        } else {
+            queuedPackets.remove(groupAddress);
+        }
+    }
+
+    /**
+     * Discard the queued packets of the group. Call this when leaving the
+     * group.
+     */
+    synchronized void clear(InetAddress groupAddress) {
+        Iterator<PendingPacket> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().groupAddress.equals(groupAddress)) {
+                iterator.remove();
+                countDown(groupAddress);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Send the packet now if the limits allow, otherwise queue it. The packet
+     * is sent out of the lock, so a slow socket never blocks the other
+     * callers and the pacer.
+     *
+     * @return Size of the data that actually sent now, or 0 if queued
+     * @throws IOException
+     */
+    int send(MulticastSocket socket, InetAddress groupAddress,
+            DatagramPacket packet) throws IOException {
+        int length = packet.getLength();
+
+        synchronized (this) {
+            /*
+             * Keep the order: never overtake the packets already queued (or
+             * being sent) for the group, nor for any group while they share
+             * the sender bucket.
+             */
+            boolean mayOvertake = (senderBucket == null)
+                    ? (getQueuedPackets(groupAddress) == 0)
+                    : (getQueuedPackets() == 0);
+            if (!mayOvertake || !tryConsume(groupAddress, length)) {
+                enqueue(socket, groupAddress, packet);
+                return 0;
+            }
+        }
+
+        socket.send(packet);
+        return length;
+    }
+
+    private void enqueue(MulticastSocket socket, InetAddress groupAddress,
+            DatagramPacket packet) {
+        int length = packet.getLength();
+
+        /* The caller may reuse the array, so copy it */
+        byte[] copy = new byte[length];
+        System.arraycopy(packet.getData(), packet.getOffset(), copy, 0, length);
+        queue.add(new PendingPacket(socket, groupAddress, new DatagramPacket(
+                copy, length, packet.getAddress(), packet.getPort())));
+        queuedPackets.put(groupAddress, getQueuedPackets(groupAddress) + 1);
+
+        throttledBytes.put(groupAddress, getThrottledBytes(groupAddress)
+                + length);
+        totalThrottledBytes += length;
+
+        startPacer();
+        notifyAll();
+    }
+
+    /**
+     * Consume tokens from both of the group and the sender bucket, only if
+     * both have enough tokens.
+     */
+    private boolean tryConsume(InetAddress groupAddress, int bytes) {
+        TokenBucket groupBucket = groupBuckets.get(groupAddress);
+        if (groupBucket != null) {
+            groupBucket.refill();
+            if (!groupBucket.canConsume(bytes)) {
+                return false;
+            }
+        }
+        if (senderBucket != null) {
+            senderBucket.refill();
+            if (!senderBucket.canConsume(bytes)) {
+                return false;
+            }
+            senderBucket.consume(bytes);
+        }
+        if (groupBucket != null) {
+            groupBucket.consume(bytes);
+        }
+        return true;
+    }
+
+    private void startPacer() {
+        if (pacer != null) {
+            return;
+        }
+
+        pacer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        List<PendingPacket> batch = take();
+                        if (batch == null) {
+                            break;
+                        }
+                        sendBatch(batch);
+                    }
+                } catch (InterruptedException e) {
+                    /* Exit */
+                } finally {
+                    stopped(Thread.currentThread());
+                }
+            }
+        }, "MulticastManager-pacer");
+        pacer.setDaemon(true);
+        pacer.start();
+    }
+
+    private synchronized void stopped(Thread thread) {
+        if (pacer == thread) {
+            pacer = null;
+        }
+    }
+
+    /**
+     * Take the queued packets which can be sent now, in arrival order. Wait
+     * until at least one packet can be sent.
+     *
+     * A group which is out of its own tokens is skipped, so it does not block
+     * the other groups. When the sender bucket is out of tokens, nothing after
+     * that packet is taken, so the sender tokens are given in arrival order.
+     *
+     * @return The packets to be sent, or null if the queue stayed empty for
+     *         {@link #IDLE_TIMEOUT_MILLIS} and the pacer thread should exit
+     * @throws InterruptedException
+     */
+    private synchronized List<PendingPacket> take()
+            throws InterruptedException {
+        while (true) {
+            if (queue.isEmpty()) {
+                wait(IDLE_TIMEOUT_MILLIS);
+                if (queue.isEmpty()) {
+                    /* Let the thread go; send() starts another if needed */
+                    pacer = null;
+                    return null;
+                }
+            }
+
+            List<PendingPacket> batch = new ArrayList<PendingPacket>();
+            long wait = Long.MAX_VALUE;
+            /* Groups whose head packet is waiting for the group bucket */
+            Set<InetAddress> blockedGroups = new HashSet<InetAddress>();
+
+            Iterator<PendingPacket> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                PendingPacket pending = iterator.next();
+                InetAddress groupAddress = pending.groupAddress;
+                int length = pending.packet.getLength();
+
+                if (blockedGroups.contains(groupAddress)) {
+                    continue;
+                }
+
+                TokenBucket groupBucket = groupBuckets.get(groupAddress);
+                if (groupBucket != null) {
+                    groupBucket.refill();
+                    if (!groupBucket.canConsume(length)) {
+                        wait = Math.min(wait,
+                                groupBucket.nanosUntilAvailable(length));
+                        blockedGroups.add(groupAddress);
+                        continue;
+                    }
+                }
+                if (senderBucket != null) {
+                    senderBucket.refill();
+                    if (!senderBucket.canConsume(length)) {
+                        wait = Math.min(wait,
+                                senderBucket.nanosUntilAvailable(length));
+                        break;
+                    }
+                    senderBucket.consume(length);
+                }
+                if (groupBucket != null) {
+                    groupBucket.consume(length);
+                }
+
+                iterator.remove();
+                batch.add(pending);
+            }
+
+            if (!batch.isEmpty()) {
+                inFlight += batch.size();
+                return batch;
+            }
+
+            if (wait == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(Math.max(1, wait / 1000000));
+            }
+        }
+    }
+
+    /**
+     * Send the packets taken from the queue, out of the lock.
+     */
+    private void sendBatch(List<PendingPacket> batch) {
+        /* Groups which failed to send */
+        Set<InetAddress> failedGroups = new HashSet<InetAddress>();
+        for (PendingPacket pending : batch) {
+            if (failedGroups.contains(pending.groupAddress)) {
+                continue;
+            }
+            try {
+                pending.socket.send(pending.packet);
+            } catch (IOException e) {
+                failedGroups.add(pending.groupAddress);
+            }
+        }
+
+        synchronized (this) {
+            inFlight -= batch.size();
+            for (PendingPacket pending : batch) {
+                countDown(pending.groupAddress);
+            }
+            /*
+             * The socket may be already left from the group. Discard the rest
+             * of the packets for the group.
+             */
+            for (InetAddress groupAddress : failedGroups) {
+                clear(groupAddress);
+            }
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package jp.naist.inet_lab.android.ipv6multicast;
+
+/**
+ * A token bucket which limits the rate of sending bytes.
+ *
+ * This class is not thread-safe. The owner MUST guard it by its own lock.
+ */
+class TokenBucket {
+    /**
+     * The time in nanoseconds to recover from the minimum rate to the
+     * configured rate in the adaptive mode.
+     */
+    static final long RECOVERY_NANOS = 10L * 1000 * 1000 * 1000;
+
+    /**
+     * The lowest rate is 1/MIN_RATE_DIVISOR of the configured rate.
+     */
+    static final int MIN_RATE_DIVISOR = 16;
+
+    /** Configured rate by bytes per second */
+    final long maxRate;
+    /** Maximum number of tokens (bytes) */
+    final long capacity;
+    /** Current rate by bytes per second. Lower than maxRate when backing off. */
+    double rate;
+    /** Available tokens (bytes). May be negative after a large packet. */
+    double tokens;
+    /** The time when tokens were refilled last */
+    long lastRefill;
+
+    /**
+     * @param bytesPerSecond
+     *            Sustained rate by bytes per second
+     * @param burstBytes
+     *            Maximum size by bytes which can be sent at once
+     */
+    TokenBucket(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond <= 0 || burstBytes <= 0) {
+            throw new IllegalArgumentException(
+                    "The rate and the burst size must be positive.");
+        }
+        this.maxRate = bytesPerSecond;
+        this.capacity = burstBytes;
+        this.rate = bytesPerSecond;
+        this.tokens = burstBytes;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Add tokens for the elapsed time, and raise the rate toward the
+     * configured rate if backed off. The rate recovers even after the
+     * adaptive mode is turned off, so it never stays backed off.
+     */
+    void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRefill;
+        lastRefill = now;
+
+        tokens = Math.min(capacity, tokens + rate * elapsed / 1e9);
+
+        if (rate < maxRate) {
+            rate = Math.min(maxRate, rate + (double) maxRate * elapsed
+                    / RECOVERY_NANOS);
+        }
+    }
+
+    /**
+     * Check the packet can be sent now. A packet larger than the capacity can
+     * be sent only when the bucket is full.
+     *
+     * @param bytes
+     *            Size of the packet
+     * @return True if the packet can be sent
+     */
+    boolean canConsume(int bytes) {
+        return tokens >= Math.min(bytes, capacity);
+    }
+
+    void consume(int bytes) {
+        tokens -= bytes;
+    }
+
+    /**
+     * @param bytes
+     *            Size of the packet
+     * @return Nanoseconds to wait until the packet can be sent
+     */
+    long nanosUntilAvailable(int bytes) {
+        double lack = Math.min(bytes, capacity) - tokens;
+        if (lack <= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(lack * 1e9 / rate);
+    }
+
+    /**
+     * Halve the current rate (Multiplicative decrease).
+     */
+    void backOff() {
+        rate = Math.max((double) maxRate / MIN_RATE_DIVISOR, rate / 2);
+    }
+}
@@ -1,8 +1,7 @@
 package jp.naist.inet_lab.android.ipv6multicastchat;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jp.naist.inet_lab.android.ipv6multicast.MulticastException;
 import jp.naist.inet_lab.android.ipv6multicast.MulticastManager;
@@ -11,6 +10,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.app.Activity;
 import android.content.Intent;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -21,6 +21,11 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 public class ChatActivity extends Activity {
+    /**
+     * Separates the handle-name from the message, like "Bob > Hello"
+     */
+    protected static final String HEADER_SEPARATOR = " > ";
+
     /**
      * A handle-name
      */
@@ -46,6 +51,18 @@ public class ChatActivity extends Activity {
 
     protected Handler handler;
 
+    /**
+     * True while the activity is in the foreground. The join finishes on
+     * another thread, so check this to know the result is still wanted.
+     */
+    protected volatile boolean resumed;
+
+    /**
+     * Counted up on each leave, so that the result of a join which was left
+     * while joining is ignored.
+     */
+    protected final AtomicInteger leaveCount = new AtomicInteger();
+
     protected Button buttonSend;
     protected EditText editMessage;
     protected TextView textChatLog;
@@ -67,7 +84,7 @@ public class ChatActivity extends Activity {
             public void onClick(View v) {
                 String message = editMessage.getText().toString();
                 if (!message.isEmpty()) {
-                    message = name + " > " + message;
+                    message = name + HEADER_SEPARATOR + message;
                     sendMessage(message);
                     editMessage.setText("");
                 }
@@ -87,13 +104,15 @@ public class ChatActivity extends Activity {
     protected void onResume() {
         super.onResume();
 
+        this.resumed = true;
         this.joinGroup();
-        this.startReceiveMessage();
     }
 
     protected void onPause() {
         super.onPause();
 
+        this.resumed = false;
+
         // If the user expressly leave the group, it is unnecessary to leave the
         // group. So we should confirm that the application currently joined or
         // not.
@@ -126,25 +145,65 @@ public class ChatActivity extends Activity {
     }
 
     /**
-     * Join the multicast group
+     * Join the multicast group and start receiving messages, without blocking
+     * the UI thread
      */
     protected void joinGroup() {
+        final int leaveCountAtJoin = leaveCount.get();
         multicastManager.enableMulticastOnWifi(getApplicationContext(),
                 getString(R.string.app_name));
-        try {
-            multicastManager.join(groupAddress, portNumber);
-            showToastFromThread(getString(R.string.alert_join_success) + " "
-                    + groupAddress, Toast.LENGTH_SHORT);
-        } catch (MulticastException e) {
-            showToastFromThread(getString(R.string.alert_join_failed),
-                    Toast.LENGTH_LONG);
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    ChatActivity.this.finish();
-                }
-            });
-        }
+        multicastManager.joinAsync(groupAddress, portNumber, 1024, false,
+                new MulticastManager.Receiver() {
+                    @Override
+                    public void run(ReceivedData receivedData) {
+                        appendChatLog(receivedData.getText());
+                    }
+                }, new MulticastManager.JoinListener() {
+                    @Override
+                    public void onJoined(InetAddress groupAddress,
+                            long latencyNanos) {
+                        Log.d("ChatActivity", "Joined in " + latencyNanos
+                                / 1000000 + " ms");
+
+                        // The user has already left this screen while joining
+                        if (!resumed) {
+                            leaveGroup();
+                            return;
+                        }
+                        showToastFromThread(
+                                getString(R.string.alert_join_success) + " "
+                                        + ChatActivity.this.groupAddress,
+                                Toast.LENGTH_SHORT);
+                    }
+
+                    @Override
+                    public void onAlreadyJoined(InetAddress groupAddress) {
+                        // The earlier join keeps receiving into the same log
+                        Log.d("ChatActivity", "Already joined " + groupAddress);
+                    }
+
+                    @Override
+                    public void onJoinFailed(MulticastException e) {
+                        // Left while joining: leaveGroup() already released
+                        // the lock, and a newer join may hold it again
+                        if (leaveCount.get() != leaveCountAtJoin) {
+                            return;
+                        }
+                        multicastManager.disableMulticastOnWifi();
+                        if (!resumed) {
+                            return;
+                        }
+                        showToastFromThread(
+                                getString(R.string.alert_join_failed),
+                                Toast.LENGTH_LONG);
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                ChatActivity.this.finish();
+                            }
+                        });
+                    }
+                });
     }
 
     /**
@@ -152,16 +211,18 @@ public class ChatActivity extends Activity {
      */
     protected void leaveGroup() {
         // Leave the multicast group, and then disable the mulricast on WiFi
-        // interface.
+        // interface even if failed to leave.
+        leaveCount.incrementAndGet();
         try {
             multicastManager.leave();
-            multicastManager.disableMulticastOnWifi();
             showToastFromThread(getString(R.string.alert_leave_success) + " "
                     + groupAddress, Toast.LENGTH_SHORT);
         } catch (MulticastException e) {
             // When an error is occured, toast a message.
             showToastFromThread(getString(R.string.alert_leave_failed),
                     Toast.LENGTH_LONG);
+        } finally {
+            multicastManager.disableMulticastOnWifi();
         }
     }
 
@@ -186,30 +247,6 @@ public class ChatActivity extends Activity {
         send.start();
     }
 
-    protected void startReceiveMessage() {
-        InetAddress groupAddressAsInetAddr = null;
-
-        try {
-            groupAddressAsInetAddr = InetAddress.getByName(this.groupAddress);
-
-            multicastManager.startReceiver(groupAddressAsInetAddr, 1024, false,
-                    new MulticastManager.Receiver() {
-                        @Override
-                        public void run(ReceivedData receivedData) {
-                            String message = new String(receivedData.buffer,
-                                    Charset.forName("UTF-8"));
-                            appendChatLog(message);
-                        }
-                    });
-        } catch (UnknownHostException e) {
-            showToastFromThread(getString(R.string.alert_join_failed),
-                    Toast.LENGTH_LONG);
-        } catch (MulticastException e) {
-            showToastFromThread(getString(R.string.alert_join_failed),
-                    Toast.LENGTH_LONG);
-        }
-    }
-
     /**
      * Append specified message to the chat log area
      * 
@@ -1,8 +1,12 @@
 package jp.naist.inet_lab.android.ipv6multicastchat;
 
+import jp.naist.inet_lab.android.ipv6multicast.MulticastException;
+import jp.naist.inet_lab.android.ipv6multicast.MulticastManager;
 import android.os.Bundle;
 import android.app.Activity;
 import android.content.Intent;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.Menu;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -27,6 +31,26 @@ public class MainActivity extends Activity {
         // A form for input the multicast group address
         this.editGroupAddress = (EditText) this
                 .findViewById(R.id.editGroupAddress);
+        this.editGroupAddress.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start,
+                    int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before,
+                    int count) {
+            }
+
+            /*
+             * Validate the address while typing, so that the ChatActivity
+             * never fails to join because of a typo
+             */
+            @Override
+            public void afterTextChanged(Editable s) {
+                validateGroupAddress();
+            }
+        });
 
         // A form for input the port number
         this.editPortNumber = (EditText) this.findViewById(R.id.editPortNumber);
@@ -40,8 +64,11 @@ public class MainActivity extends Activity {
              * Start the ChatActivity
              */
             public void onClick(View v) {
-                // FIXME: Validate the input(check the name and the address are
-                // valid)
+                // FIXME: Validate the name and the port number
+                if (!validateGroupAddress()) {
+                    return;
+                }
+
                 String name = editName.getText().toString();
                 String groupAddress = editGroupAddress.getText().toString();
                 int portNumber = Integer.parseInt(editPortNumber.getText()
@@ -57,6 +84,32 @@ public class MainActivity extends Activity {
             }
 
         });
+
+        validateGroupAddress();
+    }
+
+    /**
+     * Check the group address is a literal IPv6 multicast address, and enable
+     * the join button only if valid. This never calls the resolver, so it is
+     * cheap enough to call on every keystroke.
+     * 
+     * @return True if valid
+     */
+    private boolean validateGroupAddress() {
+        String groupAddress = editGroupAddress.getText().toString();
+        boolean valid;
+        try {
+            MulticastManager.parseLiteralAddress(groupAddress);
+            valid = true;
+        } catch (MulticastException e) {
+            valid = false;
+        }
+
+        // Don't blame the empty form
+        editGroupAddress.setError((valid || groupAddress.isEmpty()) ? null
+                : getString(R.string.alert_invalid_group_address));
+        buttonJoin.setEnabled(valid);
+        return valid;
     }
 
     @Override
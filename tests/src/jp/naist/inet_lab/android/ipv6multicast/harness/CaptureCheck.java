@@ -0,0 +1,159 @@
+package jp.naist.inet_lab.android.ipv6multicast.harness;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import jp.naist.inet_lab.android.ipv6multicast.CaptureRecorder;
+import jp.naist.inet_lab.android.ipv6multicast.CaptureReplayer;
+import jp.naist.inet_lab.android.ipv6multicast.MulticastManager.ReceivedData;
+import jp.naist.inet_lab.android.ipv6multicast.MulticastManager.Receiver;
+
+/**
+ * Check that packets written by {@link CaptureRecorder} are replayed by
+ * {@link CaptureReplayer} as they were, and that a file with a corrupt header
+ * is rejected. Exits with 1 if any check fails.
+ *
+ * Build it like {@link TrafficGenerator}, and run:
+ *
+ * <pre>
+ * java -cp bin/harness \
+ *     jp.naist.inet_lab.android.ipv6multicast.harness.CaptureCheck
+ * </pre>
+ */
+public class CaptureCheck {
+    /** Size of the magic and the version at the head of a capture file */
+    static final int HEADER_SIZE = 5;
+
+    private final List<String> failures = new ArrayList<String>();
+
+    /**
+     * Build the packets to be recorded: IPv6 and IPv4 sources, a null group
+     * address, an empty payload and a payload shorter than its buffer.
+     */
+    static List<ReceivedData> packets() throws IOException {
+        List<ReceivedData> packets = new ArrayList<ReceivedData>();
+        Random random = new Random(1);
+
+        packets.add(packet("fd00::1", "ff12::1234", 54321, 54321, 100, 100,
+                random));
+        packets.add(packet("192.0.2.1", null, 1, 65535, 1500, 1400, random));
+        packets.add(packet("fd00::2", "ff05::1:3", 65535, 0, 16, 0, random));
+        packets.add(packet("fd00::3", "239.1.2.3", 40000, 54321, 2048, 1,
+                random));
+        return packets;
+    }
+
+    private static ReceivedData packet(String source, String group,
+            int sourcePort, int targetPort, int bufferSize, int length,
+            Random random) throws IOException {
+        ReceivedData data = new ReceivedData();
+        data.sourceAddress = InetAddress.getByName(source);
+        data.groupAddress = (group == null) ? null : InetAddress
+                .getByName(group);
+        data.sourcePort = sourcePort;
+        data.targetPort = targetPort;
+        data.buffer = new byte[bufferSize];
+        random.nextBytes(data.buffer);
+        data.length = length;
+        return data;
+    }
+
+    static byte[] record(List<ReceivedData> packets) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CaptureRecorder recorder = new CaptureRecorder(output);
+        for (ReceivedData packet : packets) {
+            recorder.record(packet);
+        }
+        recorder.close();
+        return output.toByteArray();
+    }
+
+    void checkRoundTrip() throws Exception {
+        final List<ReceivedData> expected = packets();
+        final List<ReceivedData> replayed = new ArrayList<ReceivedData>();
+
+        CaptureReplayer replayer = new CaptureReplayer(
+                new ByteArrayInputStream(record(expected)));
+        long count = replayer.replay(new Receiver() {
+            @Override
+            public void run(ReceivedData receivedData) {
+                replayed.add(receivedData);
+            }
+        }, CaptureReplayer.AS_FAST_AS_POSSIBLE);
+
+        if (count != expected.size() || replayed.size() != expected.size()) {
+            failures.add("replayed " + count + " (" + replayed.size()
+                    + " delivered) of " + expected.size() + " records");
+            return;
+        }
+
+        for (int i = 0; i < expected.size(); i++) {
+            ReceivedData want = expected.get(i);
+            ReceivedData got = replayed.get(i);
+            String prefix = "record " + i + ": ";
+
+            if (!want.sourceAddress.equals(got.sourceAddress)) {
+                failures.add(prefix + "source address " + got.sourceAddress);
+            }
+            if (want.groupAddress == null ? got.groupAddress != null
+                    : !want.groupAddress.equals(got.groupAddress)) {
+                failures.add(prefix + "group address " + got.groupAddress);
+            }
+            if (want.sourcePort != got.sourcePort) {
+                failures.add(prefix + "source port " + got.sourcePort);
+            }
+            if (want.targetPort != got.targetPort) {
+                failures.add(prefix + "target port " + got.targetPort);
+            }
+            if (want.length != got.length
+                    || !Arrays.equals(
+                            Arrays.copyOf(want.buffer, want.length),
+                            Arrays.copyOf(got.buffer, got.length))) {
+                failures.add(prefix + "payload of " + got.length + " bytes");
+            }
+        }
+    }
+
+    /**
+     * A capture file whose header is corrupted at the offset must be
+     * rejected by the constructor.
+     */
+    void checkRejected(String name, int offset) throws IOException {
+        byte[] file = record(packets());
+        file[offset] ^= 0x5a;
+        expectRejected(name, file);
+    }
+
+    void expectRejected(String name, byte[] file) {
+        try {
+            new CaptureReplayer(new ByteArrayInputStream(file));
+            failures.add(name + " was accepted");
+        } catch (IOException e) {
+            /* Expected */
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CaptureCheck check = new CaptureCheck();
+
+        check.checkRoundTrip();
+        check.checkRejected("corrupt magic", 0);
+        check.checkRejected("corrupt magic", 3);
+        check.checkRejected("unknown version", HEADER_SIZE - 1);
+        check.expectRejected("empty file", new byte[0]);
+        check.expectRejected("truncated header",
+                Arrays.copyOf(record(packets()), HEADER_SIZE - 1));
+
+        System.out.println("capture: " + check.failures.size() + " failed");
+        for (String failure : check.failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        System.exit(check.failures.isEmpty() ? 0 : 1);
+    }
+}
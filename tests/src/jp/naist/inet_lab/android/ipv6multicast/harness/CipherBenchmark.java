@@ -0,0 +1,140 @@
+package jp.naist.inet_lab.android.ipv6multicast.harness;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import jp.naist.inet_lab.android.ipv6multicast.GroupCipher;
+import jp.naist.inet_lab.android.ipv6multicast.MulticastException;
+import jp.naist.inet_lab.android.ipv6multicast.MulticastManager.ReceivedData;
+
+/**
+ * Measure the overhead of {@link GroupCipher} per message, and the throughput
+ * ceiling of the encrypted traffic compared with the plaintext.
+ *
+ * The first part encrypts and decrypts messages of several sizes on a single
+ * thread. The second part runs {@link TrafficGenerator} with and without the
+ * cipher.
+ */
+public class CipherBenchmark {
+    static final int[] SIZES = { 64, 256, 1024, 1400 };
+    static final long WARM_UP_NANOS = 1000L * 1000 * 1000;
+    static final long MEASURE_NANOS = 2000L * 1000 * 1000;
+
+    /**
+     * Encrypt and decrypt messages in a loop, like the sender and the receiver
+     * thread do. Copying the message into the receive buffer stands for the
+     * socket, and it is also done for the plaintext.
+     *
+     * @param cipher
+     *            A cipher, or null for the plaintext
+     * @param size
+     *            Size of the message
+     * @return Nanoseconds per message
+     * @throws MulticastException
+     */
+    static double measure(GroupCipher cipher, int size)
+            throws MulticastException {
+        byte[] message = new byte[size];
+        new Random(size).nextBytes(message);
+        byte[] receiveBuffer = new byte[size + GroupCipher.OVERHEAD];
+        ReceivedData receivedData = new ReceivedData();
+
+        /* Warm up the JIT, then measure */
+        runFor(cipher, message, receiveBuffer, receivedData, WARM_UP_NANOS);
+        long start = System.nanoTime();
+        long count = runFor(cipher, message, receiveBuffer, receivedData,
+                MEASURE_NANOS);
+        return (double) (System.nanoTime() - start) / count;
+    }
+
+    private static long runFor(GroupCipher cipher, byte[] message,
+            byte[] receiveBuffer, ReceivedData receivedData, long nanos)
+            throws MulticastException {
+        long deadline = System.nanoTime() + nanos;
+        long count = 0;
+
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 100; i++) {
+                if (cipher == null) {
+                    System.arraycopy(message, 0, receiveBuffer, 0,
+                            message.length);
+                    receivedData.length = message.length;
+                } else {
+                    byte[] sent = cipher.encrypt(message, message.length);
+                    System.arraycopy(sent, 0, receiveBuffer, 0,
+                            message.length + GroupCipher.OVERHEAD);
+                    receivedData.length = message.length
+                            + GroupCipher.OVERHEAD;
+                }
+                receivedData.buffer = receiveBuffer;
+                if (cipher != null) {
+                    cipher.decrypt(receivedData);
+                }
+            }
+            count += 100;
+        }
+        return count;
+    }
+
+    /**
+     * @param algorithm
+     *            An algorithm of GroupCipher
+     * @return A cipher, or null if the algorithm is not available
+     */
+    static GroupCipher createCipher(String algorithm) {
+        try {
+            return new GroupCipher("CipherBenchmark group key"
+                    .getBytes(Charset.forName("UTF-8")), algorithm);
+        } catch (MulticastException e) {
+            System.out.println(algorithm + " is not available: "
+                    + e.getCause());
+            return null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] algorithms = { null, GroupCipher.AES_GCM,
+                GroupCipher.CHACHA20_POLY1305 };
+
+        System.out.println("== Per message (encrypt + decrypt) ==");
+        for (String algorithm : algorithms) {
+            GroupCipher cipher = null;
+            if (algorithm != null) {
+                cipher = createCipher(algorithm);
+                if (cipher == null) {
+                    continue;
+                }
+            }
+            for (int size : SIZES) {
+                double nanos = measure(cipher, size);
+                System.out.println(String.format(
+                        "%-18s %5d bytes: %8.0f ns/msg, %8.1f MB/s",
+                        algorithm == null ? "plaintext" : algorithm, size,
+                        nanos, size / nanos * 1e9 / 1024 / 1024));
+            }
+        }
+
+        System.out.println();
+        System.out.println("== Throughput ceiling (TrafficGenerator) ==");
+        for (String algorithm : algorithms) {
+            if (algorithm != null && createCipher(algorithm) == null) {
+                continue;
+            }
+            TrafficGenerator.Options options = new TrafficGenerator.Options();
+            options.nodes = 4;
+            options.senders = 2;
+            options.messages = 50000;
+            options.cipher = algorithm;
+
+            TrafficGenerator.Report report = new TrafficGenerator(options)
+                    .run();
+            System.out.println(String.format(
+                    "%-18s %8.0f msg/s delivered, %8.0f KB/s, p99 %.3f ms",
+                    algorithm == null ? "plaintext" : algorithm,
+                    report.delivered / report.seconds, report.deliveredBytes
+                            / report.seconds / 1024,
+                    report.latency.percentileMillis(0.99)));
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,197 @@
+package jp.naist.inet_lab.android.ipv6multicast.harness;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import jp.naist.inet_lab.android.ipv6multicast.MulticastManager;
+
+/**
+ * An in-memory network which delivers datagrams between
+ * {@link InMemorySocket}s in the same JVM, with the semantics of IP multicast.
+ *
+ * A datagram is delivered to every socket which joined the destination group
+ * and bound to the destination port. Loss and reordering can be injected with
+ * the seeded random, so the same seed and the same sending order produce the
+ * same delivery.
+ */
+public class InMemoryNetwork {
+    /** All sockets attached to this network */
+    final List<InMemorySocket> sockets;
+
+    /** Probability to drop a datagram per receiver */
+    final double lossRate;
+    /** Probability to hold a datagram back behind the next one per receiver */
+    final double reorderRate;
+    final Random random;
+
+    /** A datagram held back for reordering, for each receiver */
+    final Map<InMemorySocket, DatagramPacket> heldBack;
+
+    /** Counter to assign a unique address to each socket */
+    int nextHostId;
+
+    long droppedPackets;
+    long reorderedPackets;
+
+    /**
+     * @param lossRate
+     *            Probability to drop a datagram per receiver (0.0 - 1.0)
+     * @param reorderRate
+     *            Probability to reorder a datagram per receiver (0.0 - 1.0)
+     * @param seed
+     *            Seed of the random for loss and reordering
+     */
+    public InMemoryNetwork(double lossRate, double reorderRate, long seed) {
+        this.sockets = new ArrayList<InMemorySocket>();
+        this.lossRate = lossRate;
+        this.reorderRate = reorderRate;
+        this.random = new Random(seed);
+        this.heldBack = new HashMap<InMemorySocket, DatagramPacket>();
+    }
+
+    /**
+     * A lossless network which never reorders.
+     */
+    public InMemoryNetwork() {
+        this(0, 0, 0);
+    }
+
+    /**
+     * Create a MulticastManager whose sockets are attached to this network.
+     *
+     * @return A new MulticastManager
+     */
+    public MulticastManager createManager() {
+        return new MulticastManager() {
+            @Override
+            protected MulticastSocket createSocket(int localPort)
+                    throws IOException {
+                return InMemoryNetwork.this.createSocket(localPort);
+            }
+        };
+    }
+
+    /**
+     * Create a socket attached to this network.
+     *
+     * @param localPort
+     *            A port number which bind on the local. 0 is not allowed.
+     * @return A new socket
+     * @throws IOException
+     */
+    public synchronized InMemorySocket createSocket(int localPort)
+            throws IOException {
+        if (localPort <= 0) {
+            throw new IllegalArgumentException(
+                    "The in-memory network needs an explicit port number.");
+        }
+        InMemorySocket socket = new InMemorySocket(this, nextAddress(),
+                localPort);
+        sockets.add(socket);
+        return socket;
+    }
+
+    /**
+     * Deliver the datagram to all members of the destination group.
+     *
+     * @param sender
+     *            The socket which sends the datagram
+     * @param packet
+     *            The datagram to be delivered
+     */
+    synchronized void deliver(InMemorySocket sender, DatagramPacket packet) {
+        InetAddress groupAddress = packet.getAddress();
+        int port = packet.getPort();
+
+        for (InMemorySocket receiver : sockets) {
+            if (!receiver.isMember(groupAddress, port)) {
+                continue;
+            }
+            if (receiver == sender && sender.isLoopbackDisabled()) {
+                continue;
+            }
+
+            if (lossRate > 0 && random.nextDouble() < lossRate) {
+                droppedPackets++;
+                continue;
+            }
+
+            DatagramPacket copy = copyOf(packet, sender.getLocalAddress(),
+                    sender.getLocalPort());
+
+            DatagramPacket held = heldBack.remove(receiver);
+            if (held == null && reorderRate > 0
+                    && random.nextDouble() < reorderRate) {
+                heldBack.put(receiver, copy);
+                reorderedPackets++;
+                continue;
+            }
+
+            receiver.enqueue(copy);
+            if (held != null) {
+                receiver.enqueue(held);
+            }
+        }
+    }
+
+    /**
+     * Deliver all datagrams held back for reordering.
+     */
+    public synchronized void flush() {
+        for (Map.Entry<InMemorySocket, DatagramPacket> entry : heldBack
+                .entrySet()) {
+            entry.getKey().enqueue(entry.getValue());
+        }
+        heldBack.clear();
+    }
+
+    synchronized void detach(InMemorySocket socket) {
+        sockets.remove(socket);
+        heldBack.remove(socket);
+    }
+
+    /**
+     * @return Number of datagrams dropped by the injected loss
+     */
+    public synchronized long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * @return Number of datagrams held back by the injected reordering
+     */
+    public synchronized long getReorderedPackets() {
+        return reorderedPackets;
+    }
+
+    /**
+     * Assign a unique unique-local address (fd00::/8) to a socket.
+     */
+    private InetAddress nextAddress() throws UnknownHostException {
+        int id = ++nextHostId;
+        byte[] address = new byte[16];
+        address[0] = (byte) 0xfd;
+        address[12] = (byte) (id >>> 24);
+        address[13] = (byte) (id >>> 16);
+        address[14] = (byte) (id >>> 8);
+        address[15] = (byte) id;
+        return InetAddress.getByAddress(address);
+    }
+
+    private static DatagramPacket copyOf(DatagramPacket packet,
+            InetAddress sourceAddress, int sourcePort) {
+        byte[] data = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), packet.getOffset(), data, 0,
+                data.length);
+        return new DatagramPacket(data, data.length, sourceAddress,
+                sourcePort);
+    }
+}
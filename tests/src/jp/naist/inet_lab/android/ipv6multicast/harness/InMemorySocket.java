@@ -0,0 +1,145 @@
+package jp.naist.inet_lab.android.ipv6multicast.harness;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A multicast socket attached to an {@link InMemoryNetwork}. No datagram goes
+ * out of the JVM.
+ */
+public class InMemorySocket extends MulticastSocket {
+    /**
+     * Put into the queue to wake up the receiving thread when closed
+     */
+    private static final DatagramPacket CLOSED = new DatagramPacket(
+            new byte[0], 0);
+
+    final InMemoryNetwork network;
+    final InetAddress localAddress;
+    final int localPort;
+
+    /** Joined group addresses */
+    final Set<InetAddress> groups;
+    /** Datagrams waiting to be received */
+    final BlockingQueue<DatagramPacket> queue;
+
+    /** True then the datagrams sent by this socket is not delivered to itself */
+    volatile boolean loopbackDisabled;
+    volatile boolean closed;
+
+    InMemorySocket(InMemoryNetwork network, InetAddress localAddress,
+            int localPort) throws IOException {
+        /* An unbound socket, it is never used for the real network. */
+        super((SocketAddress) null);
+
+        this.network = network;
+        this.localAddress = localAddress;
+        this.localPort = localPort;
+        this.groups = new HashSet<InetAddress>();
+        this.queue = new LinkedBlockingQueue<DatagramPacket>();
+    }
+
+    @Override
+    public synchronized void joinGroup(InetAddress groupAddress)
+            throws IOException {
+        ensureOpen();
+        groups.add(groupAddress);
+    }
+
+    @Override
+    public synchronized void leaveGroup(InetAddress groupAddress)
+            throws IOException {
+        ensureOpen();
+        groups.remove(groupAddress);
+    }
+
+    synchronized boolean isMember(InetAddress groupAddress, int port) {
+        return !closed && port == localPort && groups.contains(groupAddress);
+    }
+
+    @Override
+    public void setLoopbackMode(boolean disable) throws SocketException {
+        this.loopbackDisabled = disable;
+    }
+
+    boolean isLoopbackDisabled() {
+        return loopbackDisabled;
+    }
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+        ensureOpen();
+        network.deliver(this, packet);
+    }
+
+    /**
+     * Receive a datagram. Like UDP, a datagram longer than the buffer is
+     * truncated.
+     */
+    @Override
+    public void receive(DatagramPacket packet) throws IOException {
+        ensureOpen();
+
+        DatagramPacket received;
+        try {
+            received = queue.take();
+        } catch (InterruptedException e) {
+            throw new SocketException("Interrupted");
+        }
+        if (received == CLOSED) {
+            throw new SocketException("Socket is closed");
+        }
+
+        int length = Math.min(received.getLength(), packet.getData().length
+                - packet.getOffset());
+        System.arraycopy(received.getData(), 0, packet.getData(),
+                packet.getOffset(), length);
+        packet.setLength(length);
+        packet.setAddress(received.getAddress());
+        packet.setPort(received.getPort());
+    }
+
+    void enqueue(DatagramPacket packet) {
+        queue.add(packet);
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        network.detach(this);
+        queue.add(CLOSED);
+        super.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void ensureOpen() throws SocketException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+    }
+}
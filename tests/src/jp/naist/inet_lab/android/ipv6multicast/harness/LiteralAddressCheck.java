@@ -0,0 +1,109 @@
+package jp.naist.inet_lab.android.ipv6multicast.harness;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.naist.inet_lab.android.ipv6multicast.MulticastException;
+import jp.naist.inet_lab.android.ipv6multicast.MulticastManager;
+
+/**
+ * Check {@link MulticastManager#parseLiteralAddress(String)} with a table of
+ * accepted and rejected addresses. Exits with 1 if any case fails.
+ *
+ * Build it like {@link TrafficGenerator}, and run:
+ *
+ * <pre>
+ * java -cp bin/harness \
+ *     jp.naist.inet_lab.android.ipv6multicast.harness.LiteralAddressCheck
+ * </pre>
+ */
+public class LiteralAddressCheck {
+    /**
+     * Addresses which must be accepted, and their 16 bytes in hex
+     */
+    static final String[][] ACCEPTED = {
+            { "ff12::1234", "ff120000000000000000000000001234" },
+            { "FF02::1", "ff020000000000000000000000000001" },
+            { "ff12::", "ff120000000000000000000000000000" },
+            { "ff0e:0:0:0:0:0:0:1", "ff0e0000000000000000000000000001" },
+            { "ff12:1:2:3:4:5:6::", "ff120001000200030004000500060000" },
+            { "ff12::1:2:3:4:5:6", "ff120000000100020003000400050006" },
+            { "ff12:0000:ffff::abcd", "ff120000ffff0000000000000000abcd" },
+            { "ff05::1:3", "ff050000000000000000000000010003" }, };
+
+    /**
+     * Addresses which must be rejected, and why
+     */
+    static final String[][] REJECTED = {
+            { null, "null" },
+            { "", "empty" },
+            { "::", "unspecified, not multicast" },
+            { "fe80::1", "not multicast" },
+            { "ff12:::1", "triple colon" },
+            { "ff12::1::2", "two \"::\"" },
+            { "ff12:1:2:3:4:5:6:7:8", "9 groups" },
+            { "ff12:1:2:3:4:5:6:7::", "8 groups and \"::\"" },
+            { "ff12:1:2", "3 groups without \"::\"" },
+            { ":ff12::1", "leading single colon" },
+            { "ff12::1:", "trailing single colon" },
+            { "ff12::12345", "5-digit group" },
+            { "ff12::1%eth0", "zone ID" },
+            { "ff12::1%1", "numeric zone ID" },
+            { "ff12::1.2.3.4", "embedded IPv4" },
+            { "::ffff:224.0.0.1", "IPv4-mapped multicast" },
+            { "224.0.0.1", "IPv4" },
+            { " ff12::1", "leading space" },
+            { "ff12::1 ", "trailing space" },
+            { "ff12:: 1", "space in the middle" },
+            { "ff12::1\n", "newline" },
+            { "[ff12::1]", "brackets" },
+            { "g:1", "not hex, would hit the resolver" },
+            { "ff12::\uff11", "fullwidth digit" },
+            { "localhost", "host name" }, };
+
+    public static void main(String[] args) {
+        List<String> failures = new ArrayList<String>();
+
+        for (String[] entry : ACCEPTED) {
+            try {
+                InetAddress address = MulticastManager
+                        .parseLiteralAddress(entry[0]);
+                String hex = toHex(address.getAddress());
+                if (!hex.equals(entry[1])) {
+                    failures.add(entry[0] + " parsed as " + hex);
+                }
+            } catch (MulticastException e) {
+                failures.add(entry[0] + " rejected: "
+                        + e.getCause().getMessage());
+            }
+        }
+
+        for (String[] entry : REJECTED) {
+            try {
+                InetAddress address = MulticastManager
+                        .parseLiteralAddress(entry[0]);
+                failures.add("\"" + entry[0] + "\" (" + entry[1]
+                        + ") accepted as " + toHex(address.getAddress()));
+            } catch (MulticastException e) {
+                /* Expected */
+            }
+        }
+
+        System.out.println((ACCEPTED.length + REJECTED.length) + " cases, "
+                + failures.size() + " failed");
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+}
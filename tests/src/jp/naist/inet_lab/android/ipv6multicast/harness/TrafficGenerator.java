@@ -0,0 +1,503 @@
+package jp.naist.inet_lab.android.ipv6multicast.harness;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import jp.naist.inet_lab.android.ipv6multicast.GroupCipher;
+import jp.naist.inet_lab.android.ipv6multicast.MulticastException;
+import jp.naist.inet_lab.android.ipv6multicast.MulticastManager;
+import jp.naist.inet_lab.android.ipv6multicast.MulticastManager.ReceivedData;
+
+/**
+ * Run N MulticastManagers on an {@link InMemoryNetwork}, send generated
+ * traffic among them, and check delivery, ordering and latency.
+ *
+ * This runs on a plain JVM without any device, so it can be used as a
+ * regression check and also as a soak/load tool to find the throughput
+ * ceiling. Run with --help to see the options.
+ *
+ * The harness lives in tests/src so that it is not packed into the APK.
+ * Build and run it from the project root with android.jar of the target
+ * platform on the class path, only for compiling:
+ *
+ * <pre>
+ * javac -cp $ANDROID_HOME/platforms/android-17/android.jar \
+ *     -sourcepath src:tests/src -d bin/harness \
+ *     tests/src/jp/naist/inet_lab/android/ipv6multicast/harness/*.java
+ * java -cp bin/harness \
+ *     jp.naist.inet_lab.android.ipv6multicast.harness.TrafficGenerator
+ * </pre>
+ */
+public class TrafficGenerator {
+    /**
+     * Size of the header in the generated message: sender index (int),
+     * sequence number (long) and sent time in nanoseconds (long)
+     */
+    public static final int HEADER_SIZE = 4 + 8 + 8;
+
+    /** The group key shared by all nodes when the cipher is enabled */
+    static final byte[] GROUP_KEY = "TrafficGenerator group key"
+            .getBytes(Charset.forName("UTF-8"));
+
+    /**
+     * Settings of the traffic and the network
+     */
+    public static class Options {
+        /** Number of MulticastManagers */
+        public int nodes = 4;
+        /** Number of nodes which send messages */
+        public int senders = 2;
+        /** Number of messages to send over all senders */
+        public int messages = 10000;
+        /** Run for this seconds instead of sending fixed messages if positive */
+        public int durationSeconds = 0;
+        /** Messages per second over all senders. 0 means as fast as possible */
+        public double rate = 0;
+        /** Minimum size of the message by bytes */
+        public int minSize = 32;
+        /** Maximum size of the message by bytes */
+        public int maxSize = 512;
+        /** Probability to drop a datagram per receiver */
+        public double loss = 0;
+        /** Probability to reorder a datagram per receiver */
+        public double reorder = 0;
+        /** Seed for the traffic and the injected loss/reordering */
+        public long seed = 1;
+        /** Sender rate limit by bytes per second. 0 means unlimited */
+        public long senderRateLimit = 0;
+        /** Encrypt with this algorithm of GroupCipher. null means plaintext */
+        public String cipher = null;
+        /** Fail if the 99th percentile latency exceeds this. 0 means no check */
+        public double maxP99Millis = 0;
+        public String groupAddress = "ff12::1234";
+        public int port = 54321;
+        public int bufferSize = 1500;
+
+        /**
+         * Parse options like "--nodes=8".
+         *
+         * @param args
+         *            Command line arguments
+         * @return Parsed options
+         */
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                    throw new IllegalArgumentException("Unknown option: "
+                            + arg);
+                }
+                String key = arg.substring(2, arg.indexOf('='));
+                String value = arg.substring(arg.indexOf('=') + 1);
+
+                if (key.equals("nodes")) {
+                    options.nodes = Integer.parseInt(value);
+                } else if (key.equals("senders")) {
+                    options.senders = Integer.parseInt(value);
+                } else if (key.equals("messages")) {
+                    options.messages = Integer.parseInt(value);
+                } else if (key.equals("duration")) {
+                    options.durationSeconds = Integer.parseInt(value);
+                } else if (key.equals("rate")) {
+                    options.rate = Double.parseDouble(value);
+                } else if (key.equals("min-size")) {
+                    options.minSize = Integer.parseInt(value);
+                } else if (key.equals("max-size")) {
+                    options.maxSize = Integer.parseInt(value);
+                } else if (key.equals("loss")) {
+                    options.loss = Double.parseDouble(value);
+                } else if (key.equals("reorder")) {
+                    options.reorder = Double.parseDouble(value);
+                } else if (key.equals("seed")) {
+                    options.seed = Long.parseLong(value);
+                } else if (key.equals("sender-rate-limit")) {
+                    options.senderRateLimit = Long.parseLong(value);
+                } else if (key.equals("cipher")) {
+                    options.cipher = value;
+                } else if (key.equals("max-p99-ms")) {
+                    options.maxP99Millis = Double.parseDouble(value);
+                } else if (key.equals("group")) {
+                    options.groupAddress = value;
+                } else if (key.equals("port")) {
+                    options.port = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option: "
+                            + arg);
+                }
+            }
+            options.validate();
+            return options;
+        }
+
+        void validate() {
+            if (nodes < 2 || senders < 1 || senders > nodes) {
+                throw new IllegalArgumentException(
+                        "Need 2 or more nodes and 1 to nodes senders.");
+            }
+            int maxPayload = bufferSize
+                    - (cipher != null ? GroupCipher.OVERHEAD : 0);
+            if (minSize < HEADER_SIZE || maxSize < minSize
+                    || maxSize > maxPayload) {
+                throw new IllegalArgumentException("Size must be in "
+                        + HEADER_SIZE + " - " + maxPayload + ".");
+            }
+        }
+    }
+
+    /**
+     * Result of a run
+     */
+    public static class Report {
+        public long sentMessages;
+        public long sentBytes;
+        /** Number of deliveries expected if nothing is lost */
+        public long expectedDeliveries;
+        public long delivered;
+        /** Number of deliveries dropped by the injected loss */
+        public long dropped;
+        public long deliveredBytes;
+        public long outOfOrder;
+        public long duplicates;
+        public double seconds;
+        public final LatencyHistogram latency = new LatencyHistogram();
+
+        public long lost() {
+            return expectedDeliveries - delivered;
+        }
+
+        /**
+         * Check the result against what the options allow.
+         *
+         * @return Reasons of failure. Empty if passed.
+         */
+        public List<String> check(Options options) {
+            List<String> failures = new ArrayList<String>();
+            if (duplicates > 0) {
+                failures.add(duplicates + " duplicated deliveries");
+            }
+            /* The network counts every injected drop, so expect exactly them */
+            if (lost() != dropped) {
+                failures.add(lost() + " deliveries lost, but the network "
+                        + "dropped " + dropped);
+            }
+            if (options.reorder == 0 && outOfOrder > 0) {
+                failures.add(outOfOrder
+                        + " deliveries out of order without injected reordering");
+            }
+            if (options.maxP99Millis > 0
+                    && latency.percentileMillis(0.99) > options.maxP99Millis) {
+                failures.add("p99 latency " + latency.percentileMillis(0.99)
+                        + " ms exceeds " + options.maxP99Millis + " ms");
+            }
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("sent:       %d messages, %d bytes%n",
+                    sentMessages, sentBytes));
+            builder.append(String.format(
+                    "delivered:  %d / %d (lost %d, dropped %d, out of order %d, duplicated %d)%n",
+                    delivered, expectedDeliveries, lost(), dropped, outOfOrder,
+                    duplicates));
+            builder.append(String.format(
+                    "throughput: %.0f msg/s sent, %.0f msg/s and %.0f KB/s delivered%n",
+                    sentMessages / seconds, delivered / seconds,
+                    deliveredBytes / seconds / 1024));
+            builder.append(String.format(
+                    "latency:    p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                    latency.percentileMillis(0.5),
+                    latency.percentileMillis(0.99), latency.maxMillis()));
+            return builder.toString();
+        }
+    }
+
+    /**
+     * A histogram of latency with buckets of power of two microseconds. It
+     * keeps constant memory in long soak runs.
+     */
+    public static class LatencyHistogram {
+        final long[] buckets = new long[64];
+        long count;
+        long maxNanos;
+
+        synchronized void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            buckets[63 - Long.numberOfLeadingZeros(micros)]++;
+            count++;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        /**
+         * @return Upper bound of the bucket which contains the percentile
+         */
+        public synchronized double percentileMillis(double percentile) {
+            long threshold = (long) Math.ceil(count * percentile);
+            long sum = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                sum += buckets[i];
+                if (sum >= threshold && sum > 0) {
+                    return Math.min((2L << i) / 1000.0, maxMillis());
+                }
+            }
+            return 0;
+        }
+
+        public synchronized double maxMillis() {
+            return maxNanos / 1e6;
+        }
+    }
+
+    /**
+     * Received messages of a node from each sender
+     */
+    class Receiver implements MulticastManager.Receiver {
+        final SequenceWindow[] windows;
+
+        Receiver(int senders) {
+            windows = new SequenceWindow[senders];
+            for (int i = 0; i < senders; i++) {
+                windows[i] = new SequenceWindow();
+            }
+        }
+
+        @Override
+        public void run(ReceivedData receivedData) {
+            long now = System.nanoTime();
+            ByteBuffer message = receivedData.getPayload();
+            int sender = message.getInt();
+            long sequence = message.getLong();
+            long sentNanos = message.getLong();
+
+            synchronized (report) {
+                SequenceWindow window = windows[sender];
+                if (window.isDuplicate(sequence)) {
+                    report.duplicates++;
+                    return;
+                }
+                if (sequence < window.highest) {
+                    report.outOfOrder++;
+                }
+                window.mark(sequence);
+
+                report.delivered++;
+                report.deliveredBytes += receivedData.length;
+                report.notifyAll();
+            }
+            report.latency.record(now - sentNanos);
+        }
+    }
+
+    /**
+     * Sequence numbers received from a sender, within a sliding window below
+     * the highest one. It keeps constant memory in long soak runs. A sequence
+     * number older than the window cannot be checked, and it is counted as
+     * out of order but not as duplicated.
+     */
+    static class SequenceWindow {
+        static final int SIZE = 4096;
+
+        /** Bits of received sequence numbers, indexed by sequence % SIZE */
+        final long[] bits = new long[SIZE / 64];
+        /** The highest sequence number received, or -1 */
+        long highest = -1;
+
+        boolean isDuplicate(long sequence) {
+            if (sequence > highest || sequence <= highest - SIZE) {
+                return false;
+            }
+            int index = (int) (sequence % SIZE);
+            return (bits[index / 64] & (1L << (index % 64))) != 0;
+        }
+
+        void mark(long sequence) {
+            if (sequence <= highest - SIZE) {
+                return;
+            }
+            if (sequence > highest) {
+                /* Forget the sequence numbers which go out of the window */
+                if (sequence - highest >= SIZE) {
+                    Arrays.fill(bits, 0);
+                } else {
+                    for (long i = highest + 1; i < sequence; i++) {
+                        clear(i);
+                    }
+                }
+                highest = sequence;
+            }
+            int index = (int) (sequence % SIZE);
+            bits[index / 64] |= 1L << (index % 64);
+        }
+
+        private void clear(long sequence) {
+            int index = (int) (sequence % SIZE);
+            bits[index / 64] &= ~(1L << (index % 64));
+        }
+    }
+
+    final Options options;
+    final Report report;
+
+    public TrafficGenerator(Options options) {
+        options.validate();
+        this.options = options;
+        this.report = new Report();
+    }
+
+    /**
+     * Join all nodes, send the traffic, wait for the delivery and leave.
+     *
+     * @return The result
+     * @throws MulticastException
+     * @throws InterruptedException
+     */
+    public Report run() throws MulticastException, InterruptedException {
+        InetAddress groupAddress;
+        try {
+            groupAddress = InetAddress.getByName(options.groupAddress);
+        } catch (UnknownHostException e) {
+            throw new MulticastException(e);
+        }
+
+        InMemoryNetwork network = new InMemoryNetwork(options.loss,
+                options.reorder, options.seed);
+        List<MulticastManager> managers = new ArrayList<MulticastManager>();
+
+        for (int i = 0; i < options.nodes; i++) {
+            MulticastManager manager = network.createManager();
+            manager.join(groupAddress, options.port);
+            if (options.cipher != null) {
+                manager.setGroupCipher(groupAddress, new GroupCipher(
+                        GROUP_KEY, options.cipher));
+            }
+            manager.startReceiver(groupAddress, options.bufferSize, true,
+                    new Receiver(options.senders));
+            if (options.senderRateLimit > 0) {
+                manager.setSenderRateLimit(options.senderRateLimit,
+                        options.maxSize * 4);
+            }
+            managers.add(manager);
+        }
+
+        long start = System.nanoTime();
+        send(managers);
+        /*
+         * The pacers may still be sending. Flush only after they finished,
+         * otherwise a packet held back after the flush is never delivered.
+         */
+        awaitPacers(managers);
+        network.flush();
+        awaitDelivery(network);
+        report.dropped = network.getDroppedPackets();
+        report.seconds = (System.nanoTime() - start) / 1e9;
+
+        for (MulticastManager manager : managers) {
+            manager.leave();
+        }
+        return report;
+    }
+
+    /**
+     * Send messages from the senders in a order decided by the seed.
+     */
+    private void send(List<MulticastManager> managers)
+            throws MulticastException, InterruptedException {
+        Random random = new Random(options.seed);
+        long[] sequences = new long[options.senders];
+        long start = System.nanoTime();
+        long deadline = start + options.durationSeconds * 1000000000L;
+
+        for (long i = 0;; i++) {
+            if (options.durationSeconds > 0) {
+                if (System.nanoTime() >= deadline) {
+                    break;
+                }
+            } else if (i >= options.messages) {
+                break;
+            }
+
+            if (options.rate > 0) {
+                long due = start + (long) (i * 1e9 / options.rate);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+
+            int sender = random.nextInt(options.senders);
+            int size = options.minSize
+                    + random.nextInt(options.maxSize - options.minSize + 1);
+
+            ByteBuffer message = ByteBuffer.allocate(size);
+            message.putInt(sender);
+            message.putLong(sequences[sender]++);
+            message.putLong(System.nanoTime());
+
+            managers.get(sender).sendData(message.array(), options.port);
+
+            report.sentMessages++;
+            report.sentBytes += size;
+        }
+        report.expectedDeliveries = report.sentMessages * (options.nodes - 1);
+    }
+
+    /**
+     * Wait until no packet is queued by the rate limit on any node.
+     */
+    private void awaitPacers(List<MulticastManager> managers)
+            throws InterruptedException {
+        for (MulticastManager manager : managers) {
+            while (manager.getQueuedPackets() > 0) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Wait until all messages are delivered, or no message is delivered for a
+     * while.
+     */
+    private void awaitDelivery(InMemoryNetwork network)
+            throws InterruptedException {
+        long expected = report.expectedDeliveries - network.getDroppedPackets();
+        long quietMillis = 2000;
+
+        synchronized (report) {
+            long lastDelivered = -1;
+            while (report.delivered < expected
+                    && report.delivered != lastDelivered) {
+                lastDelivered = report.delivered;
+                report.wait(quietMillis);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--help")) {
+            System.out.println("Options: --nodes= --senders= --messages= "
+                    + "--duration=SECONDS --rate=MSG_PER_SEC --min-size= "
+                    + "--max-size= --loss=0.0-1.0 --reorder=0.0-1.0 --seed= "
+                    + "--sender-rate-limit=BYTES_PER_SEC --cipher=ALGORITHM "
+                    + "--max-p99-ms= "
+                    + "--group= --port=");
+            return;
+        }
+
+        Options options = Options.parse(args);
+        Report report = new TrafficGenerator(options).run();
+        System.out.print(report);
+
+        List<String> failures = report.check(options);
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+}